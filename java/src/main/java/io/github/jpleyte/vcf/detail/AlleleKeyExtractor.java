@@ -0,0 +1,42 @@
+package io.github.jpleyte.vcf.detail;
+
+import htsjdk.variant.variantcontext.VariantContext;
+
+/**
+ * Records are duplicates if they have the same contig, position, reference and alternate alleles. This is the default.
+ *
+ * @author j
+ *
+ */
+public class AlleleKeyExtractor implements VariantKeyExtractor {
+    private final VariantKeyEncoder variantKeyEncoder;
+
+    /**
+     * Constructor
+     *
+     * @param contigIndex
+     */
+    public AlleleKeyExtractor(ContigIndex contigIndex) {
+        this(new VariantKeyEncoder(contigIndex));
+    }
+
+    /**
+     * Constructor for an extractor that uses a configured encoder, such as one that normalizes alleles
+     *
+     * @param variantKeyEncoder
+     */
+    public AlleleKeyExtractor(VariantKeyEncoder variantKeyEncoder) {
+        this.variantKeyEncoder = variantKeyEncoder;
+    }
+
+    @Override
+    public boolean extract(VariantContext vc, VariantKey key) {
+        variantKeyEncoder.encode(vc, key);
+        return true;
+    }
+
+    @Override
+    public boolean isPositional() {
+        return true;
+    }
+}
@@ -0,0 +1,211 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.util.Arrays;
+
+/**
+ * Left aligns and trims the alleles of a record so that an indel has the same representation however it was written
+ * (Tan, Abecasis and Kang 2015):
+ *
+ * 1. While every allele ends with the same base, remove it; if an allele becomes empty, add the reference base to the
+ * left of every allele and move the position one to the left.
+ * 2. While every allele has at least two bases and they start with the same base, remove it and move the position one
+ * to the right.
+ *
+ * SNPs and records with symbolic alleles are left alone, and the reference is only read when an allele needs a base
+ * added to its left. Not thread safe; each worker needs its own.
+ *
+ * @author j
+ *
+ */
+public class AlleleNormalizer {
+    private static final int INITIAL_LEFT_ROOM = 16;
+
+    private final ReferenceWindow referenceWindow;
+
+    // Each allele is copied into a buffer with room on the left to add reference bases
+    private byte[][] buffers = new byte[0][];
+    private int[] starts = new int[0];
+    private int[] ends = new int[0];
+
+    private int position;
+    private byte[] reference;
+    private byte[][] alternates = new byte[4][];
+
+    /**
+     * Constructor
+     *
+     * @param referenceWindow
+     */
+    public AlleleNormalizer(ReferenceWindow referenceWindow) {
+        this.referenceWindow = referenceWindow;
+    }
+
+    /**
+     * Normalize the alleles of a record. If they change, the new position and alleles are returned by getPosition(),
+     * getReference() and getAlternates() until the next call.
+     *
+     * @param contig
+     * @param position
+     * @param reference
+     * @param alternates
+     * @param numberOfAlternates
+     * @return true if the position or alleles changed
+     */
+    public boolean normalize(String contig, int position, byte[] reference, byte[][] alternates,
+            int numberOfAlternates) {
+        if (numberOfAlternates == 0 || !needsNormalizing(reference, alternates, numberOfAlternates)) {
+            return false;
+        }
+
+        int numberOfAlleles = numberOfAlternates + 1;
+        load(0, reference);
+        for (int i = 0; i < numberOfAlternates; i++) {
+            load(i + 1, alternates[i]);
+        }
+
+        boolean changed = false;
+        while (endWithSameBase(numberOfAlleles)) {
+            changed = true;
+            boolean empty = false;
+            for (int i = 0; i < numberOfAlleles; i++) {
+                empty |= --ends[i] == starts[i];
+            }
+
+            if (empty) {
+                byte base = referenceWindow.getBase(contig, position - 1);
+                if (base == 0) {
+                    return false;
+                }
+                position--;
+                for (int i = 0; i < numberOfAlleles; i++) {
+                    prepend(i, base);
+                }
+            }
+        }
+
+        while (startWithSameBase(numberOfAlleles)) {
+            changed = true;
+            position++;
+            for (int i = 0; i < numberOfAlleles; i++) {
+                starts[i]++;
+            }
+        }
+
+        if (!changed) {
+            return false;
+        }
+
+        this.position = position;
+        this.reference = Arrays.copyOfRange(buffers[0], starts[0], ends[0]);
+        if (this.alternates.length < numberOfAlternates) {
+            this.alternates = new byte[numberOfAlternates][];
+        }
+        for (int i = 0; i < numberOfAlternates; i++) {
+            this.alternates[i] = Arrays.copyOfRange(buffers[i + 1], starts[i + 1], ends[i + 1]);
+        }
+        return true;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public byte[] getReference() {
+        return reference;
+    }
+
+    public byte[][] getAlternates() {
+        return alternates;
+    }
+
+    /**
+     * Return false for SNPs and for records that cannot be normalized, such as those with symbolic alleles. Records
+     * whose alternates all equal the reference are left alone too; trimming them would walk to the start of the contig.
+     *
+     * @param reference
+     * @param alternates
+     * @param numberOfAlternates
+     * @return
+     */
+    private static boolean needsNormalizing(byte[] reference, byte[][] alternates, int numberOfAlternates) {
+        boolean allSingleBases = reference.length == 1;
+        boolean allReference = true;
+        if (!isSequence(reference)) {
+            return false;
+        }
+        for (int i = 0; i < numberOfAlternates; i++) {
+            if (!isSequence(alternates[i])) {
+                return false;
+            }
+            allSingleBases &= alternates[i].length == 1;
+            allReference &= Arrays.equals(alternates[i], reference);
+        }
+        return !allSingleBases && !allReference;
+    }
+
+    private static boolean isSequence(byte[] bases) {
+        if (bases.length == 0) {
+            return false;
+        }
+        for (byte base : bases) {
+            switch (base) {
+            case 'A':
+            case 'C':
+            case 'G':
+            case 'T':
+            case 'N':
+                break;
+            default:
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void load(int allele, byte[] bases) {
+        if (buffers.length <= allele) {
+            buffers = Arrays.copyOf(buffers, allele + 1);
+            starts = Arrays.copyOf(starts, allele + 1);
+            ends = Arrays.copyOf(ends, allele + 1);
+        }
+        if (buffers[allele] == null || buffers[allele].length < bases.length + INITIAL_LEFT_ROOM) {
+            buffers[allele] = new byte[bases.length + INITIAL_LEFT_ROOM];
+        }
+        starts[allele] = buffers[allele].length - bases.length;
+        ends[allele] = buffers[allele].length;
+        System.arraycopy(bases, 0, buffers[allele], starts[allele], bases.length);
+    }
+
+    private void prepend(int allele, byte base) {
+        if (starts[allele] == 0) {
+            // Double the buffer, keeping the bases at the end
+            byte[] old = buffers[allele];
+            byte[] grown = new byte[old.length * 2];
+            System.arraycopy(old, 0, grown, old.length, old.length);
+            buffers[allele] = grown;
+            starts[allele] += old.length;
+            ends[allele] += old.length;
+        }
+        buffers[allele][--starts[allele]] = base;
+    }
+
+    private boolean endWithSameBase(int numberOfAlleles) {
+        byte last = buffers[0][ends[0] - 1];
+        for (int i = 1; i < numberOfAlleles; i++) {
+            if (buffers[i][ends[i] - 1] != last) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean startWithSameBase(int numberOfAlleles) {
+        byte first = buffers[0][starts[0]];
+        for (int i = 0; i < numberOfAlleles; i++) {
+            if (ends[i] - starts[i] < 2 || buffers[i][starts[i]] != first) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
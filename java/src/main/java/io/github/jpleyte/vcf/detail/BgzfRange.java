@@ -0,0 +1,161 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of BGZF blocks in a block compressed file. The range starts at the first byte of a block and ends where the
+ * next range starts, or at the end of the file.
+ *
+ * @author j
+ *
+ */
+public class BgzfRange {
+    private static final int BLOCK_HEADER_LENGTH = 18;
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    private final long start;
+    private final long end;
+    private final boolean first;
+
+    /**
+     * Constructor
+     *
+     * @param start compressed offset of the first block in the range
+     * @param end compressed offset of the first block after the range
+     * @param first true if this is the range at the start of the file
+     */
+    public BgzfRange(long start, long end, boolean first) {
+        this.start = start;
+        this.end = end;
+        this.first = first;
+    }
+
+    /**
+     * Divide a block compressed file into roughly equal sized ranges of blocks. Rather than reading every block header,
+     * the file is only scanned for a block header at each of the evenly spaced split points.
+     *
+     * @param file
+     * @param numberOfRanges
+     * @return
+     * @throws IOException
+     */
+    public static List<BgzfRange> split(File file, int numberOfRanges) throws IOException {
+        List<BgzfRange> ranges = new ArrayList<>(numberOfRanges);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+            long start = 0;
+            for (int i = 1; i <= numberOfRanges && start < length; i++) {
+                long end = i == numberOfRanges ? length : findBlockStart(channel, length * i / numberOfRanges);
+                if (end > start) {
+                    ranges.add(new BgzfRange(start, end, start == 0));
+                    start = end;
+                }
+            }
+        }
+
+        return ranges;
+    }
+
+    /**
+     * Return the offset of the first block that starts at or after the offset, or the length of the file if there is
+     * none.
+     *
+     * @param channel
+     * @param offset
+     * @return
+     * @throws IOException
+     */
+    private static long findBlockStart(FileChannel channel, long offset) throws IOException {
+        long length = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        long position = offset;
+        while (position < length) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+
+            // Only look at offsets where a whole header fits in the buffer; the rest is rescanned next time round
+            int limit = read < SCAN_BUFFER_SIZE ? read : read - BLOCK_HEADER_LENGTH;
+            for (int i = 0; i < limit; i++) {
+                if (buffer.get(i) == 31 && i + 1 < read && buffer.get(i + 1) == (byte) 139
+                        && isBlockStart(channel, position + i)) {
+                    return position + i;
+                }
+            }
+            position += limit;
+        }
+
+        return length;
+    }
+
+    /**
+     * Return true if a BGZF block starts at the offset. A block header is accepted when the gzip magic number and the
+     * BGZF "BC" extra field are present and the block size it declares lands on another block header, or on the end of
+     * the file.
+     *
+     * @param channel
+     * @param offset
+     * @return
+     * @throws IOException
+     */
+    private static boolean isBlockStart(FileChannel channel, long offset) throws IOException {
+        int blockSize = readBlockSize(channel, offset);
+        if (blockSize < 0) {
+            return false;
+        }
+
+        long next = offset + blockSize;
+        return next == channel.size() || readBlockSize(channel, next) >= 0;
+    }
+
+    /**
+     * Return the total size of the block whose header starts at the offset, or -1 if there is no BGZF header there
+     *
+     * @param channel
+     * @param offset
+     * @return
+     * @throws IOException
+     */
+    private static int readBlockSize(FileChannel channel, long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        if (channel.read(header, offset) < BLOCK_HEADER_LENGTH) {
+            return -1;
+        }
+
+        if (header.get(0) != 31 || header.get(1) != (byte) 139 || header.get(2) != 8 || header.get(3) != 4
+                || header.getShort(10) < 6 || header.get(12) != 'B' || header.get(13) != 'C'
+                || header.getShort(14) != 2) {
+            return -1;
+        }
+
+        return (header.getShort(16) & 0xffff) + 1;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public boolean isFirst() {
+        return first;
+    }
+
+    @Override
+    public String toString() {
+        return start + "-" + end;
+    }
+}
@@ -0,0 +1,143 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiFunction;
+import java.util.logging.Logger;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderVersion;
+import io.github.jpleyte.log.BootstrapLogger;
+
+/**
+ * Fork/join task that decodes and analyses a list of BGZF ranges of a block compressed VCF. The list is split in half
+ * until a task has a single range, which it reads with its own stream and codec.
+ *
+ * A line belongs to the range its first byte is in, except that a line starting exactly on the first byte of a range
+ * belongs to the range before it. So every range but the first skips the line it starts in, and every range reads
+ * lines until one starts after its end.
+ *
+ * @author j
+ *
+ */
+public class BgzfRangeTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private static final Logger log = BootstrapLogger.configureLogger(BgzfRangeTask.class.getName());
+
+    private final File vcfFile;
+    private final VCFHeader header;
+    private final VCFHeaderVersion version;
+    private final List<BgzfRange> ranges;
+    private final transient BiFunction<BgzfRange, Iterator<VariantContext>, VcfDetailsTask> taskFactory;
+
+    /**
+     * Constructor
+     *
+     * @param vcfFile
+     * @param header
+     * @param version
+     * @param ranges
+     * @param taskFactory creates the task that analyses the records of one range, given the range and its records
+     */
+    public BgzfRangeTask(File vcfFile, VCFHeader header, VCFHeaderVersion version, List<BgzfRange> ranges,
+            BiFunction<BgzfRange, Iterator<VariantContext>, VcfDetailsTask> taskFactory) {
+        this.vcfFile = vcfFile;
+        this.header = header;
+        this.version = version;
+        this.ranges = ranges;
+        this.taskFactory = taskFactory;
+    }
+
+    @Override
+    protected void compute() {
+        if (ranges.size() > 1) {
+            int middle = ranges.size() / 2;
+            invokeAll(new BgzfRangeTask(vcfFile, header, version, ranges.subList(0, middle), taskFactory),
+                    new BgzfRangeTask(vcfFile, header, version, ranges.subList(middle, ranges.size()), taskFactory));
+        } else if (ranges.size() == 1) {
+            BgzfRange range = ranges.get(0);
+            log.fine("Reading range " + range);
+            try (RangeIterator iter = new RangeIterator(range)) {
+                taskFactory.apply(range, iter).run();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read range " + range + " of " + vcfFile, e);
+            }
+        }
+    }
+
+    /**
+     * Decodes the records of one range
+     */
+    private class RangeIterator implements Iterator<VariantContext>, AutoCloseable {
+        private final BlockCompressedInputStream stream;
+        private final VCFCodec codec = new VCFCodec();
+        private final long endFilePointer;
+        private final boolean lastRange;
+        private String nextLine;
+
+        RangeIterator(BgzfRange range) throws IOException {
+            codec.setVCFHeader(new VCFHeader(header), version);
+            stream = new BlockCompressedInputStream(vcfFile);
+            stream.seek(range.getStart() << 16);
+            endFilePointer = range.getEnd() << 16;
+            lastRange = range.getEnd() >= vcfFile.length();
+
+            // Skip the line this range starts in; the range before it reads that line
+            if (!range.isFirst()) {
+                stream.readLine();
+            }
+            nextLine = readRecordLine();
+        }
+
+        /**
+         * Return the next line that is not part of the header and starts within the range, or null
+         *
+         * @return
+         * @throws IOException
+         */
+        private String readRecordLine() throws IOException {
+            String line;
+            do {
+                if (!lastRange && stream.getFilePointer() > endFilePointer) {
+                    return null;
+                }
+                line = stream.readLine();
+            } while (line != null && (line.isEmpty() || line.startsWith(VCFHeader.HEADER_INDICATOR)));
+
+            return line;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextLine != null;
+        }
+
+        @Override
+        public VariantContext next() {
+            if (nextLine == null) {
+                throw new NoSuchElementException();
+            }
+
+            VariantContext vc = codec.decode(nextLine);
+            try {
+                nextLine = readRecordLine();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return vc;
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+}
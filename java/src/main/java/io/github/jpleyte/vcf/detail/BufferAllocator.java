@@ -0,0 +1,142 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import io.github.jpleyte.log.BootstrapLogger;
+
+/**
+ * Allocates the zeroed ByteBuffers of the hash tables: on the heap, as direct buffers, or memory mapped from sparse
+ * files in a directory. A buffer that is no longer needed, such as the old table after a resize, is freed straight
+ * away rather than when it is garbage collected, and its mapped file is deleted.
+ *
+ * @author j
+ *
+ */
+class BufferAllocator {
+    private static final Logger log = BootstrapLogger.configureLogger(BufferAllocator.class.getName());
+
+    static final BufferAllocator HEAP = new BufferAllocator(false, null);
+
+    // Unsafe.invokeCleaner frees a direct or mapped buffer; it is looked up by reflection as it is not a public API
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.fine("Direct buffers will be freed when they are garbage collected: " + e);
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final boolean direct;
+    private final File mapDirectory;
+    private final Map<ByteBuffer, File> mappedFiles = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private BufferAllocator(boolean direct, File mapDirectory) {
+        this.direct = direct;
+        this.mapDirectory = mapDirectory;
+    }
+
+    /**
+     * Return an allocator of buffers outside the heap
+     *
+     * @param mapDirectory directory for memory mapped files, or null to use direct buffers
+     * @return
+     */
+    static BufferAllocator offHeap(File mapDirectory) {
+        return new BufferAllocator(true, mapDirectory);
+    }
+
+    /**
+     * Return a zeroed buffer in native byte order
+     *
+     * @param bytes
+     * @return
+     */
+    ByteBuffer allocate(int bytes) {
+        if (!direct) {
+            return ByteBuffer.allocate(bytes).order(ByteOrder.nativeOrder());
+        }
+        if (mapDirectory == null) {
+            return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        }
+
+        // The mapping stays valid after the channel is closed. The file is sparse so untouched bytes use no disk.
+        try {
+            File file = File.createTempFile("duplicate-index-", ".bin", mapDirectory);
+            file.deleteOnExit();
+            ByteBuffer buffer;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+                raf.setLength(bytes);
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes).order(ByteOrder.nativeOrder());
+            }
+            mappedFiles.put(buffer, file);
+            return buffer;
+        } catch (IOException e) {
+            log.severe("Unable to map duplicate index file in " + mapDirectory + ": " + e.getMessage());
+            System.exit(1);
+            return null;
+        }
+    }
+
+    /**
+     * Free a buffer from this allocator and delete its mapped file. The buffer must not be used again.
+     *
+     * @param buffer
+     */
+    void free(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        if (INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                log.fine("Unable to free a buffer before it is garbage collected: " + e);
+            }
+        }
+
+        File file = mappedFiles.remove(buffer);
+        if (file != null && !file.delete()) {
+            log.fine("Unable to delete " + file + " until the buffer is collected; it is deleted on exit");
+        }
+    }
+
+    /**
+     * Delete the files of buffers that were not freed. Their memory is returned once they are garbage collected.
+     */
+    void deleteMappedFiles() {
+        List<File> files;
+        synchronized (mappedFiles) {
+            files = new ArrayList<>(mappedFiles.values());
+            mappedFiles.clear();
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                log.fine("Unable to delete " + file + " until the buffer is collected; it is deleted on exit");
+            }
+        }
+    }
+}
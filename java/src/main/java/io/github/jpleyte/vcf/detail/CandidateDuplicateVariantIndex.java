@@ -0,0 +1,68 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.util.Arrays;
+
+/**
+ * First pass of the two pass duplicate search. Keys go into a Bloom filter, and the locus of every key the filter may
+ * have seen before is recorded as a candidate. The index never reports a duplicate itself: a second pass re-reads the
+ * records at the candidate loci and checks them exactly.
+ *
+ * A duplicate always shares its locus with the first record it duplicates, and the filter has no false negatives, so
+ * every duplicate is at a candidate locus.
+ *
+ * @author j
+ *
+ */
+public class CandidateDuplicateVariantIndex implements DuplicateVariantIndex {
+    private final VariantBloomFilter bloomFilter;
+
+    private long[] candidateLoci = new long[1024];
+    private int numberOfCandidates;
+
+    /**
+     * Constructor
+     *
+     * @param expectedVariants
+     * @param falsePositiveRate
+     */
+    public CandidateDuplicateVariantIndex(long expectedVariants, double falsePositiveRate) {
+        this.bloomFilter = new VariantBloomFilter(expectedVariants, falsePositiveRate);
+    }
+
+    @Override
+    public boolean add(VariantKey key) {
+        if (bloomFilter.add(key)) {
+            addCandidate(key.getLocus());
+        }
+        return true;
+    }
+
+    private synchronized void addCandidate(long locus) {
+        if (numberOfCandidates == candidateLoci.length) {
+            candidateLoci = Arrays.copyOf(candidateLoci, numberOfCandidates * 2);
+        }
+        candidateLoci[numberOfCandidates++] = locus;
+    }
+
+    /**
+     * Return the distinct candidate loci in order. Only call this once every key has been added.
+     *
+     * @return
+     */
+    public synchronized long[] getCandidateLoci() {
+        long[] loci = Arrays.copyOf(candidateLoci, numberOfCandidates);
+        Arrays.sort(loci);
+
+        int distinct = 0;
+        for (int i = 0; i < loci.length; i++) {
+            if (i == 0 || loci[i] != loci[i - 1]) {
+                loci[distinct++] = loci[i];
+            }
+        }
+        return Arrays.copyOf(loci, distinct);
+    }
+
+    public VariantBloomFilter getBloomFilter() {
+        return bloomFilter;
+    }
+}
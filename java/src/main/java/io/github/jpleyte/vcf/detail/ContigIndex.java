@@ -0,0 +1,102 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+/**
+ * Gives every contig a small integer index. Contigs declared in the VCF header get their position in the sequence
+ * dictionary; contigs that are not declared are given the next free index the first time they are seen.
+ *
+ * @author j
+ *
+ */
+public class ContigIndex {
+    private final Map<String, Integer> indexes = new ConcurrentHashMap<>();
+    private final List<String> names = new CopyOnWriteArrayList<>();
+    private final int numberOfDeclaredContigs;
+    private final int[] lengths;
+
+    /**
+     * Constructor
+     *
+     * @param dictionary the sequence dictionary from the VCF header, or null if there isn't one
+     */
+    public ContigIndex(SAMSequenceDictionary dictionary) {
+        if (dictionary != null) {
+            for (SAMSequenceRecord sequence : dictionary.getSequences()) {
+                indexes.put(sequence.getSequenceName(), names.size());
+                names.add(sequence.getSequenceName());
+            }
+        }
+        numberOfDeclaredContigs = names.size();
+
+        lengths = new int[numberOfDeclaredContigs];
+        for (int i = 0; i < numberOfDeclaredContigs; i++) {
+            lengths[i] = dictionary.getSequence(i).getSequenceLength();
+        }
+    }
+
+    /**
+     * Return the index of the contig, assigning one if the contig has not been seen before
+     *
+     * @param contig
+     * @return
+     */
+    public int getIndex(String contig) {
+        Integer index = indexes.get(contig);
+        return index != null ? index : addContig(contig);
+    }
+
+    private synchronized int addContig(String contig) {
+        Integer index = indexes.get(contig);
+        if (index == null) {
+            index = names.size();
+            names.add(contig);
+            indexes.put(contig, index);
+        }
+        return index;
+    }
+
+    /**
+     * Return the name of the contig with the index
+     *
+     * @param index
+     * @return
+     */
+    public String getName(int index) {
+        return names.get(index);
+    }
+
+    /**
+     * Return the length of the contig from the VCF header, or 0 if it is not known
+     *
+     * @param index
+     * @return
+     */
+    public int getLength(int index) {
+        return index < lengths.length ? Math.max(0, lengths[index]) : 0;
+    }
+
+    /**
+     * Return the number of contigs that have an index
+     *
+     * @return
+     */
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * Return the number of contigs declared in the VCF header
+     *
+     * @return
+     */
+    public int getNumberOfDeclaredContigs() {
+        return numberOfDeclaredContigs;
+    }
+}
@@ -0,0 +1,198 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+import java.util.logging.Logger;
+
+import io.github.jpleyte.log.BootstrapLogger;
+
+/**
+ * Duplicate variant index with a separate index per contig, for VCFs whose records are grouped by contig. Positions
+ * within a contig can be in any order. Once the reader has moved past a contig and every batch holding its records has
+ * been analysed, the contig's index is released, so memory use is bounded by the largest contig rather than the genome.
+ *
+ * The reader calls retain() for each contig in a batch and finishContig() when the contig changes; the task calls
+ * release() when the batch is done. If a contig turns up again after it was released, a new index is started for it and
+ * duplicates of its earlier records are missed, which is reported by isGroupedByContig().
+ *
+ * @author j
+ *
+ */
+public class ContigPartitionedDuplicateVariantIndex implements DuplicateVariantIndex {
+    private static final Logger log = BootstrapLogger.configureLogger(
+            ContigPartitionedDuplicateVariantIndex.class.getName());
+
+    private final IntFunction<DuplicateVariantIndex> partitionFactory;
+    private final ContigIndex contigIndex;
+    private volatile Partition[] partitions = new Partition[0];
+
+    private volatile int firstRepeatedContig = -1;
+    private int numberOfReleasedPartitions;
+
+    /**
+     * Constructor
+     *
+     * @param partitionFactory creates the index of the contig with the given index, sized for that contig
+     * @param contigIndex
+     */
+    public ContigPartitionedDuplicateVariantIndex(IntFunction<DuplicateVariantIndex> partitionFactory,
+            ContigIndex contigIndex) {
+        this.partitionFactory = partitionFactory;
+        this.contigIndex = contigIndex;
+    }
+
+    @Override
+    public boolean add(VariantKey key) {
+        return getPartition(key.getContigIndex()).getIndex().add(key);
+    }
+
+    @Override
+    public boolean add(VariantKey key, long ordinal) {
+        return getPartition(key.getContigIndex()).getIndex().add(key, ordinal);
+    }
+
+    /**
+     * Note that a batch about to be submitted has records of a contig
+     *
+     * @param contig
+     */
+    public void retain(int contig) {
+        getPartition(contig).retain();
+    }
+
+    /**
+     * Note that a batch with records of a contig has been analysed
+     *
+     * @param contig
+     */
+    public void release(int contig) {
+        getPartition(contig).release();
+    }
+
+    /**
+     * Note that the reader has moved past a contig. Its index is released once no batch holds its records.
+     *
+     * @param contig
+     */
+    public void finishContig(int contig) {
+        getPartition(contig).finish();
+    }
+
+    /**
+     * Return true if no contig turned up again after its index was released
+     *
+     * @return
+     */
+    public boolean isGroupedByContig() {
+        return firstRepeatedContig < 0;
+    }
+
+    /**
+     * Return the name of the first contig that turned up again after it was released, or null
+     *
+     * @return
+     */
+    public String getFirstRepeatedContig() {
+        return firstRepeatedContig < 0 ? null : contigIndex.getName(firstRepeatedContig);
+    }
+
+    public synchronized int getNumberOfReleasedPartitions() {
+        return numberOfReleasedPartitions;
+    }
+
+    private Partition getPartition(int contig) {
+        Partition[] current = partitions;
+        if (contig < current.length && current[contig] != null) {
+            return current[contig];
+        }
+        return createPartition(contig);
+    }
+
+    private synchronized Partition createPartition(int contig) {
+        Partition[] current = partitions;
+        if (contig < current.length && current[contig] != null) {
+            return current[contig];
+        }
+
+        // Readers use the array without locking, so it is copied rather than changed
+        Partition[] grown = Arrays.copyOf(current, Math.max(current.length, contig + 1));
+        grown[contig] = new Partition(contig);
+        partitions = grown;
+        return grown[contig];
+    }
+
+    private synchronized void partitionReleased() {
+        numberOfReleasedPartitions++;
+    }
+
+    /**
+     * The index of one contig, with the number of batches that still hold its records
+     */
+    private class Partition {
+        private final int contig;
+        private volatile DuplicateVariantIndex index;
+        private int pendingBatches;
+        private boolean finished;
+        private boolean released;
+
+        Partition(int contig) {
+            this.contig = contig;
+        }
+
+        DuplicateVariantIndex getIndex() {
+            // Every worker adds to the same partition, so the usual case does not lock
+            DuplicateVariantIndex current = index;
+            if (current != null) {
+                return current;
+            }
+
+            synchronized (this) {
+                if (index == null) {
+                    if (released) {
+                        reopen();
+                    }
+                    index = partitionFactory.apply(contig);
+                }
+                return index;
+            }
+        }
+
+        synchronized void retain() {
+            if (released) {
+                reopen();
+            }
+            pendingBatches++;
+        }
+
+        synchronized void release() {
+            pendingBatches--;
+            releaseIfDone();
+        }
+
+        synchronized void finish() {
+            finished = true;
+            releaseIfDone();
+        }
+
+        private void releaseIfDone() {
+            if (finished && pendingBatches == 0 && !released) {
+                if (index != null) {
+                    index.release();
+                    index = null;
+                }
+                released = true;
+                partitionReleased();
+            }
+        }
+
+        private void reopen() {
+            if (firstRepeatedContig < 0) {
+                firstRepeatedContig = contig;
+            }
+            log.warning("Contig " + contigIndex.getName(contig) + " appears again after it was finished; duplicates "
+                    + "of its earlier records may be missed");
+            released = false;
+            finished = false;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.util.Iterator;
+
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderVersion;
+
+/**
+ * Decodes raw VCF lines into VariantContexts as they are iterated over. The codec is looked up each time a line is
+ * decoded, so when the codec comes from a ThreadLocal the decoding is done by, and with the codec of, whichever worker
+ * thread is iterating.
+ *
+ * @author j
+ *
+ */
+public class DecodingIterator implements Iterator<VariantContext> {
+    private final Iterator<String> lines;
+    private final ThreadLocal<VCFCodec> codecs;
+
+    /**
+     * Constructor
+     *
+     * @param lines
+     * @param codecs
+     */
+    public DecodingIterator(Iterator<String> lines, ThreadLocal<VCFCodec> codecs) {
+        this.lines = lines;
+        this.codecs = codecs;
+    }
+
+    /**
+     * Return a ThreadLocal that gives each thread its own codec. Codecs keep state while decoding and may add lines to
+     * their header, so each codec also gets its own copy of the header.
+     *
+     * @param header
+     * @param version
+     * @return
+     */
+    public static ThreadLocal<VCFCodec> createCodecs(VCFHeader header, VCFHeaderVersion version) {
+        return ThreadLocal.withInitial(() -> {
+            VCFCodec codec = new VCFCodec();
+            codec.setVCFHeader(new VCFHeader(header), version);
+            return codec;
+        });
+    }
+
+    @Override
+    public boolean hasNext() {
+        return lines.hasNext();
+    }
+
+    @Override
+    public VariantContext next() {
+        return codecs.get().decode(lines.next());
+    }
+}
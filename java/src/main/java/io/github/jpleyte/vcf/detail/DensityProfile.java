@@ -0,0 +1,203 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * The number of records in each fixed size window of each contig. A contig's array of window counts is made the first
+ * time the profile counts a record of it, sized from the contig's length in the VCF header, so a worker only holds the
+ * contigs it has seen and counting a record is an array index and an increment. Contigs without a length in the header
+ * grow as records are found further along them. Profiles with the same window size can be merged, including those of
+ * snapshots whose contigs have different indexes. Not thread safe.
+ *
+ * @author j
+ *
+ */
+public class DensityProfile {
+    private final ContigIndex contigIndex;
+    private final int windowSize;
+    private static final int[] NO_WINDOWS = new int[0];
+
+    // Indexed by the contig's ContigIndex index, then by window; null for a contig without records
+    private int[][] windows;
+
+    /**
+     * Constructor
+     *
+     * @param contigIndex
+     * @param windowSize the number of bases in a window
+     */
+    public DensityProfile(ContigIndex contigIndex, int windowSize) {
+        this.contigIndex = contigIndex;
+        this.windowSize = windowSize;
+
+        windows = new int[contigIndex.size()][];
+    }
+
+    /**
+     * Count a record
+     *
+     * @param contig the contig's index
+     * @param position counting from 1
+     */
+    public void add(int contig, int position) {
+        int window = (position - 1) / windowSize;
+        if (contig >= windows.length || windows[contig] == null || window >= windows[contig].length) {
+            grow(contig, window);
+        }
+        windows[contig][window]++;
+    }
+
+    /**
+     * Add another profile's counts to this one's. The profiles must have the same window size.
+     *
+     * @param other
+     */
+    public void merge(DensityProfile other) {
+        merge(other, null);
+    }
+
+    /**
+     * Add another profile's counts to this one's, where the other profile's contigs have different indexes. The
+     * profiles must have the same window size.
+     *
+     * @param other
+     * @param contigMap this profile's index of each of the other profile's contigs, or null if they are the same
+     */
+    public void merge(DensityProfile other, int[] contigMap) {
+        for (int otherContig = 0; otherContig < other.windows.length; otherContig++) {
+            int[] otherWindows = getWindows(other.windows, otherContig);
+            if (otherWindows.length > 0) {
+                int contig = contigMap == null ? otherContig : contigMap[otherContig];
+                grow(contig, otherWindows.length - 1);
+                for (int window = 0; window < otherWindows.length; window++) {
+                    windows[contig][window] += otherWindows[window];
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the window counts of each contig to a snapshot, leaving out empty windows at the end of a contig
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(windowSize);
+        out.writeInt(windows.length);
+        for (int contig = 0; contig < windows.length; contig++) {
+            int[] contigWindows = getWindows(windows, contig);
+            int numberOfWindows = contigWindows.length;
+            while (numberOfWindows > 0 && contigWindows[numberOfWindows - 1] == 0) {
+                numberOfWindows--;
+            }
+            out.writeInt(numberOfWindows);
+            for (int window = 0; window < numberOfWindows; window++) {
+                out.writeInt(contigWindows[window]);
+            }
+        }
+    }
+
+    /**
+     * Add the counts of a profile written by write() to this one's. The profiles must have the same window size and
+     * contig indexes.
+     *
+     * @param in
+     * @throws IOException
+     */
+    public void read(DataInputStream in) throws IOException {
+        if (in.readInt() != windowSize) {
+            throw new IOException("Density profiles have different window sizes");
+        }
+        int numberOfContigs = in.readInt();
+        for (int contig = 0; contig < numberOfContigs; contig++) {
+            int numberOfWindows = in.readInt();
+            if (numberOfWindows > 0) {
+                grow(contig, numberOfWindows - 1);
+            }
+            for (int window = 0; window < numberOfWindows; window++) {
+                windows[contig][window] += in.readInt();
+            }
+        }
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Write the profile as a bedGraph: one line per window of each contig with records, giving the contig, the
+     * window's start counting from 0, its end and the number of records in it. The last window of a contig ends at the
+     * contig's length when the header gives one.
+     *
+     * @param writer
+     * @throws IOException
+     */
+    public void writeBedGraph(Writer writer) throws IOException {
+        writer.write("track type=bedGraph name=\"variant density\" description=\"Records per " + windowSize
+                + " bp window\"\n");
+        for (int contig = 0; contig < windows.length; contig++) {
+            int[] contigWindows = getWindows(windows, contig);
+            int length = contigIndex.getLength(contig);
+
+            // Windows added by growing the array are only written up to the last one with records
+            int numberOfWindows = contigWindows.length;
+            while (numberOfWindows > 0 && contigWindows[numberOfWindows - 1] == 0
+                    && numberOfWindows > getNumberOfWindows(length)) {
+                numberOfWindows--;
+            }
+            if (!hasRecords(contigWindows, numberOfWindows)) {
+                continue;
+            }
+
+            String name = contigIndex.getName(contig);
+            for (int window = 0; window < numberOfWindows; window++) {
+                long start = (long) window * windowSize;
+                long end = start + windowSize;
+                if (start < length && end > length) {
+                    end = length;
+                }
+                writer.write(name + "\t" + start + "\t" + end + "\t" + contigWindows[window] + "\n");
+            }
+        }
+    }
+
+    private static int[] getWindows(int[][] windows, int contig) {
+        return windows[contig] == null ? NO_WINDOWS : windows[contig];
+    }
+
+    private static boolean hasRecords(int[] counts, int length) {
+        for (int i = 0; i < length; i++) {
+            if (counts[i] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int getNumberOfWindows(int length) {
+        return (int) (((long) length + windowSize - 1) / windowSize);
+    }
+
+    /**
+     * Make room for a window of a contig: the contig's windows up to its length in the header when it is first seen,
+     * and more for contigs that were not in the header or records past a contig's length
+     *
+     * @param contig
+     * @param window
+     */
+    private void grow(int contig, int window) {
+        if (contig >= windows.length) {
+            windows = Arrays.copyOf(windows, Math.max(contig + 1, windows.length * 2));
+        }
+        if (windows[contig] == null) {
+            windows[contig] = new int[Math.max(window + 1, getNumberOfWindows(contigIndex.getLength(contig)))];
+        } else if (window >= windows[contig].length) {
+            windows[contig] = Arrays.copyOf(windows[contig], Math.max(window + 1, windows[contig].length * 2));
+        }
+    }
+}
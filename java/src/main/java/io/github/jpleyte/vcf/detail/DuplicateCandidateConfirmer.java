@@ -0,0 +1,133 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFFileReader;
+import io.github.jpleyte.log.BootstrapLogger;
+
+/**
+ * Second pass of the two pass duplicate search. Re-reads only the records at the candidate loci found by a
+ * CandidateDuplicateVariantIndex and checks them with an exact index. An indexed VCF is queried around the candidates;
+ * any other VCF is scanned, skipping records that are not at a candidate locus before their key is made.
+ *
+ * @author j
+ *
+ */
+public class DuplicateCandidateConfirmer {
+    private static final Logger log = BootstrapLogger.configureLogger(DuplicateCandidateConfirmer.class.getName());
+
+    // Candidates closer together than this are read with one query
+    private static final int MAX_QUERY_GAP = 10000;
+
+    private final File vcfFile;
+    private final DuplicateVariantChecker duplicateVariantChecker;
+    private final VariantKeyEncoder variantKeyEncoder;
+    private final VariantKeyExtractor variantKeyExtractor;
+    private final VariantKey variantKey = new VariantKey();
+    private final ContigIndex contigIndex;
+    private final boolean normalizedPositions;
+    private final VcfDetailsAccumulator accumulator;
+
+    /**
+     * Constructor
+     *
+     * @param vcfFile
+     * @param contigIndex
+     * @param variantKeyExtractor a positional extractor
+     * @param duplicateVariantChecker checker with an exact index
+     * @param normalizedPositions true if the extractor can move a record to the left of its position in the file, in
+     *            which case the file is always scanned
+     * @param accumulator the counts of the thread that calls confirm()
+     */
+    public DuplicateCandidateConfirmer(File vcfFile, ContigIndex contigIndex, VariantKeyExtractor variantKeyExtractor,
+            DuplicateVariantChecker duplicateVariantChecker, boolean normalizedPositions,
+            VcfDetailsAccumulator accumulator) {
+        this.vcfFile = vcfFile;
+        this.contigIndex = contigIndex;
+        this.duplicateVariantChecker = duplicateVariantChecker;
+        this.variantKeyEncoder = new VariantKeyEncoder(contigIndex);
+        this.variantKeyExtractor = variantKeyExtractor;
+        this.normalizedPositions = normalizedPositions;
+        this.accumulator = accumulator;
+    }
+
+    /**
+     * Check the records at the candidate loci for duplicates
+     *
+     * @param candidateLoci sorted distinct loci
+     */
+    public void confirm(long[] candidateLoci) {
+        if (candidateLoci.length == 0) {
+            return;
+        }
+
+        try (VCFFileReader vcfFileReader = new VCFFileReader(vcfFile, false)) {
+            if (vcfFileReader.isQueryable() && !normalizedPositions) {
+                query(vcfFileReader, candidateLoci);
+            } else {
+                log.fine((normalizedPositions ? "Normalized positions cannot be queried" : vcfFile.getName()
+                        + " is not indexed") + "; scanning it for " + candidateLoci.length + " candidates");
+                scan(vcfFileReader, candidateLoci);
+            }
+        }
+    }
+
+    private void query(VCFFileReader vcfFileReader, long[] candidateLoci) {
+        int numberOfQueries = 0;
+        int i = 0;
+        while (i < candidateLoci.length) {
+            // Extend the interval while the next candidate is on the same contig and close by
+            int j = i + 1;
+            while (j < candidateLoci.length && candidateLoci[j] >>> 32 == candidateLoci[i] >>> 32
+                    && (int) candidateLoci[j] - (int) candidateLoci[j - 1] <= MAX_QUERY_GAP) {
+                j++;
+            }
+
+            String contig = contigIndex.getName((int) (candidateLoci[i] >>> 32) - 1);
+            int start = (int) candidateLoci[i];
+            int end = (int) candidateLoci[j - 1];
+            try (CloseableIterator<VariantContext> iter = vcfFileReader.query(contig, start, end)) {
+                while (iter.hasNext()) {
+                    VariantContext vc = iter.next();
+                    // Records that overlap the interval but start before it belong to another interval
+                    if (vc.getStart() >= start) {
+                        checkIfCandidate(vc, candidateLoci, -1);
+                    }
+                }
+            }
+
+            numberOfQueries++;
+            i = j;
+        }
+        log.fine("Confirmed " + candidateLoci.length + " candidates with " + numberOfQueries + " queries");
+    }
+
+    private void scan(VCFFileReader vcfFileReader, long[] candidateLoci) {
+        long ordinal = 0;
+        try (CloseableIterator<VariantContext> iter = vcfFileReader.iterator()) {
+            while (iter.hasNext()) {
+                checkIfCandidate(iter.next(), candidateLoci, ordinal++);
+            }
+        }
+    }
+
+    private void checkIfCandidate(VariantContext vc, long[] candidateLoci, long ordinal) {
+        if (normalizedPositions) {
+            // The key has to be made to find the record's locus
+            if (variantKeyExtractor.extract(vc, variantKey)
+                    && Arrays.binarySearch(candidateLoci, variantKey.getLocus()) >= 0) {
+                duplicateVariantChecker.check(variantKey, ordinal, accumulator);
+            }
+            return;
+        }
+
+        long locus = VariantKey.toLocus(variantKeyEncoder.getContigIndex(vc.getContig()), vc.getStart());
+        if (Arrays.binarySearch(candidateLoci, locus) >= 0 && variantKeyExtractor.extract(vc, variantKey)) {
+            duplicateVariantChecker.check(variantKey, ordinal, accumulator);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.util.logging.Logger;
+
+import io.github.jpleyte.log.BootstrapLogger;
+
+/**
+ * Adds variant keys to a duplicate index, counts the duplicates and prints them if asked to. Worker tasks share one
+ * checker for a thread safe index; a checker for an index that needs its input in order is run by the reader thread.
+ *
+ * @author j
+ *
+ */
+public class DuplicateVariantChecker {
+    private static final Logger log = BootstrapLogger.configureLogger(DuplicateVariantChecker.class.getName());
+
+    private final DuplicateVariantIndex duplicateVariantIndex;
+    private final ContigIndex contigIndex;
+    private final boolean printDuplicateGenotypes;
+    private VariantHistory variantHistory;
+    private boolean appendToHistory;
+    private VariantKeyCollector exportedKeys;
+
+    /**
+     * Constructor
+     *
+     * @param duplicateVariantIndex
+     * @param contigIndex
+     * @param printDuplicateGenotypes
+     */
+    public DuplicateVariantChecker(DuplicateVariantIndex duplicateVariantIndex, ContigIndex contigIndex,
+            boolean printDuplicateGenotypes) {
+        this.duplicateVariantIndex = duplicateVariantIndex;
+        this.contigIndex = contigIndex;
+        this.printDuplicateGenotypes = printDuplicateGenotypes;
+    }
+
+    /**
+     * Determine if the variant has already been encountered, and print it if it has
+     *
+     * @param key
+     * @param ordinal position of the record in the file, or -1 if it is not known
+     * @param accumulator the counts of the calling thread
+     * @return true if the variant is a duplicate
+     */
+    public boolean check(VariantKey key, long ordinal, VcfDetailsAccumulator accumulator) {
+        checkHistory(key, accumulator);
+        if (exportedKeys != null) {
+            exportedKeys.add(key);
+        }
+        if (duplicateVariantIndex.add(key, ordinal)) {
+            return false;
+        }
+
+        recordDuplicate(key, ordinal, accumulator);
+        return true;
+    }
+
+    /**
+     * Count and print a duplicate, for indexes that find duplicates after every variant has been added
+     *
+     * @param key
+     * @param ordinal position of the record in the file, or -1 if it is not known
+     * @param accumulator the counts of the calling thread
+     */
+    public void recordDuplicate(VariantKey key, long ordinal, VcfDetailsAccumulator accumulator) {
+        accumulator.incrementNumberOfDuplicateGenotypes();
+        if (printDuplicateGenotypes) {
+            log.info("Duplicate: " + key.describe(contigIndex) + (ordinal < 0 ? "" : " (record " + (ordinal + 1) + ")"));
+        }
+    }
+
+    /**
+     * Check variants against the variants of earlier files as well
+     *
+     * @param variantHistory
+     * @param appendToHistory add variants the history has not seen to it
+     */
+    public void setVariantHistory(VariantHistory variantHistory, boolean appendToHistory) {
+        this.variantHistory = variantHistory;
+        this.appendToHistory = appendToHistory;
+    }
+
+    /**
+     * Give every variant to a collector as well, so its key can be written to a snapshot
+     *
+     * @param exportedKeys
+     */
+    public void setExportedKeys(VariantKeyCollector exportedKeys) {
+        this.exportedKeys = exportedKeys;
+    }
+
+    /**
+     * Count a record whose variant an earlier file had. Repeats within this file are counted too, as some indexes only
+     * find them at the end.
+     *
+     * @param key
+     * @param accumulator
+     */
+    private void checkHistory(VariantKey key, VcfDetailsAccumulator accumulator) {
+        if (variantHistory == null) {
+            return;
+        }
+        if (variantHistory.contains(key)) {
+            accumulator.incrementNumberOfPreviouslySeenRecords();
+        } else if (appendToHistory) {
+            variantHistory.append(key);
+        }
+    }
+
+    public DuplicateVariantIndex getDuplicateVariantIndex() {
+        return duplicateVariantIndex;
+    }
+}
@@ -0,0 +1,46 @@
+package io.github.jpleyte.vcf.detail;
+
+/**
+ * The set of variants seen so far, shared by every worker thread so that a duplicate is found no matter which thread
+ * analysed the first copy of the variant.
+ *
+ * @author j
+ *
+ */
+public interface DuplicateVariantIndex {
+
+    /**
+     * Add a variant to the index. Returns true if the variant had not been seen before, or false if it is a duplicate.
+     *
+     * @param key
+     * @return
+     */
+    boolean add(VariantKey key);
+
+    /**
+     * Add a variant with its position in the file. Indexes that report duplicates later, such as an external sort, keep
+     * the ordinal so the duplicate can be reported with it.
+     *
+     * @param key
+     * @param ordinal position of the record in the file, or -1 if it is not known
+     * @return
+     */
+    default boolean add(VariantKey key, long ordinal) {
+        return add(key);
+    }
+
+    /**
+     * Free the memory held by the index. The index is not used again.
+     */
+    default void release() {
+    }
+
+    /**
+     * Return true if variants must be added in the order they appear in the file, from a single thread
+     *
+     * @return
+     */
+    default boolean requiresOrderedInput() {
+        return false;
+    }
+}
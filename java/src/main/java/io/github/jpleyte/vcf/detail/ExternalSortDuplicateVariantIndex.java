@@ -0,0 +1,405 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.ObjLongConsumer;
+import java.util.logging.Logger;
+
+import io.github.jpleyte.log.BootstrapLogger;
+
+/**
+ * Duplicate variant index for VCFs with more variants than fit in memory. Each thread collects keys and record ordinals
+ * in its own buffer; when the buffer is full it is sorted and written to a run file, so runs are written in parallel.
+ * Once every variant has been added the runs are merged, and equal keys end up next to each other in ordinal order: the
+ * first is the original and the rest are duplicates.
+ *
+ * add() cannot tell if a variant is a duplicate, so it always returns true. Duplicates are reported by findDuplicates().
+ * The allele text of hashed keys is written to the runs so they are confirmed exactly.
+ *
+ * @author j
+ *
+ */
+public class ExternalSortDuplicateVariantIndex implements DuplicateVariantIndex {
+    private static final Logger log = BootstrapLogger.configureLogger(ExternalSortDuplicateVariantIndex.class.getName());
+
+    // The most runs merged at once; more runs are first merged into larger runs
+    private static final int MAX_MERGE_WIDTH = 128;
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+
+    private final int runSize;
+    private final File tempDirectory;
+    private final ThreadLocal<RunBuffer> buffers = ThreadLocal.withInitial(this::createBuffer);
+    private final List<RunBuffer> allBuffers = new CopyOnWriteArrayList<>();
+    private final List<File> runs = new CopyOnWriteArrayList<>();
+
+    /**
+     * Constructor
+     *
+     * @param runSize the number of keys each thread sorts in memory before writing a run
+     * @param tempDirectory directory for the run files
+     */
+    public ExternalSortDuplicateVariantIndex(int runSize, File tempDirectory) {
+        this.runSize = runSize;
+        this.tempDirectory = tempDirectory;
+    }
+
+    @Override
+    public boolean add(VariantKey key) {
+        return add(key, -1);
+    }
+
+    @Override
+    public boolean add(VariantKey key, long ordinal) {
+        buffers.get().add(key, ordinal);
+        return true;
+    }
+
+    /**
+     * Write the remaining buffers, merge the runs, and pass each duplicate with its ordinal to the consumer. Only call
+     * this once every variant has been added and the threads that added them have finished.
+     *
+     * @param duplicateConsumer
+     */
+    public void findDuplicates(ObjLongConsumer<VariantKey> duplicateConsumer) {
+        for (RunBuffer buffer : allBuffers) {
+            buffer.spill();
+        }
+        allBuffers.clear();
+
+        List<File> remaining = new ArrayList<>(runs);
+        log.fine("Merging " + remaining.size() + " runs");
+        while (remaining.size() > MAX_MERGE_WIDTH) {
+            List<File> group = new ArrayList<>(remaining.subList(0, MAX_MERGE_WIDTH));
+            File merged = createRunFile();
+            try (RunWriter writer = new RunWriter(merged)) {
+                merge(group, writer::write);
+            } catch (IOException e) {
+                fail("Unable to write " + merged, e);
+            }
+            deleteRuns(group);
+            remaining.removeAll(group);
+            remaining.add(merged);
+        }
+
+        DuplicateFinder duplicateFinder = new DuplicateFinder(duplicateConsumer);
+        merge(remaining, duplicateFinder::accept);
+        deleteRuns(remaining);
+        runs.clear();
+    }
+
+    /**
+     * Merge sorted runs, passing each entry to the consumer in order
+     *
+     * @param files
+     * @param consumer
+     */
+    private void merge(List<File> files, EntryConsumer consumer) {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, files.size()));
+        try {
+            for (File file : files) {
+                RunReader reader = new RunReader(file);
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+
+            RunReader reader;
+            while ((reader = queue.poll()) != null) {
+                consumer.accept(reader.locus, reader.high, reader.low, reader.ordinal, reader.text);
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+        } catch (IOException e) {
+            fail("Unable to merge duplicate index runs", e);
+        } finally {
+            for (RunReader open : queue) {
+                open.close();
+            }
+        }
+    }
+
+    private RunBuffer createBuffer() {
+        RunBuffer buffer = new RunBuffer();
+        allBuffers.add(buffer);
+        return buffer;
+    }
+
+    private File createRunFile() {
+        try {
+            File file = File.createTempFile("variant-keys-", ".run", tempDirectory);
+            file.deleteOnExit();
+            return file;
+        } catch (IOException e) {
+            fail("Unable to create a run file in " + tempDirectory, e);
+            return null;
+        }
+    }
+
+    private static void deleteRuns(List<File> files) {
+        for (File file : files) {
+            if (!file.delete()) {
+                log.warning("Unable to delete " + file);
+            }
+        }
+    }
+
+    private static void fail(String message, IOException e) {
+        log.severe(message + ": " + e.getMessage());
+        System.exit(1);
+    }
+
+    private static int compare(long locus1, long high1, long low1, long ordinal1, long locus2, long high2, long low2,
+            long ordinal2) {
+        int c = Long.compare(locus1, locus2);
+        if (c == 0) {
+            c = Long.compare(high1, high2);
+        }
+        if (c == 0) {
+            c = Long.compare(low1, low2);
+        }
+        if (c == 0) {
+            c = Long.compare(ordinal1, ordinal2);
+        }
+        return c;
+    }
+
+    private interface EntryConsumer {
+        void accept(long locus, long high, long low, long ordinal, String text) throws IOException;
+    }
+
+    /**
+     * Keys of one thread waiting to be written: four longs per key (locus, high, low, ordinal) and the allele text of
+     * hashed keys. Only used by its own thread until findDuplicates() is called.
+     */
+    private class RunBuffer {
+        private long[] entries = new long[Math.min(runSize, INITIAL_BUFFER_SIZE) * 4];
+        private String[] texts = new String[Math.min(runSize, INITIAL_BUFFER_SIZE)];
+        private int size;
+
+        void add(VariantKey key, long ordinal) {
+            if (size == texts.length) {
+                entries = Arrays.copyOf(entries, Math.min(runSize, size * 2) * 4);
+                texts = Arrays.copyOf(texts, Math.min(runSize, size * 2));
+            }
+
+            int i = size * 4;
+            entries[i] = key.getLocus();
+            entries[i + 1] = key.getHigh();
+            entries[i + 2] = key.getLow();
+            entries[i + 3] = ordinal;
+            texts[size] = key.isExact() ? null : key.getAlleleText();
+            if (++size == runSize) {
+                spill();
+            }
+        }
+
+        /**
+         * Sort the buffer and write it to a new run
+         */
+        void spill() {
+            if (size == 0) {
+                return;
+            }
+
+            sort(0, size - 1);
+            File file = createRunFile();
+            try (RunWriter writer = new RunWriter(file)) {
+                for (int i = 0; i < size; i++) {
+                    writer.write(entries[i * 4], entries[i * 4 + 1], entries[i * 4 + 2], entries[i * 4 + 3], texts[i]);
+                }
+            } catch (IOException e) {
+                fail("Unable to write " + file, e);
+            }
+            runs.add(file);
+
+            Arrays.fill(texts, 0, size, null);
+            size = 0;
+        }
+
+        /**
+         * Quicksort of the entries between two indexes, inclusive
+         *
+         * @param from
+         * @param to
+         */
+        private void sort(int from, int to) {
+            while (to - from > 16) {
+                int pivot = medianOfThree(from, (from + to) >>> 1, to);
+                swap(pivot, to);
+
+                int store = from;
+                for (int i = from; i < to; i++) {
+                    if (compareEntries(i, to) < 0) {
+                        swap(i, store++);
+                    }
+                }
+                swap(store, to);
+
+                // Recurse into the smaller side so the stack stays shallow
+                if (store - from < to - store) {
+                    sort(from, store - 1);
+                    from = store + 1;
+                } else {
+                    sort(store + 1, to);
+                    to = store - 1;
+                }
+            }
+
+            for (int i = from + 1; i <= to; i++) {
+                for (int j = i; j > from && compareEntries(j - 1, j) > 0; j--) {
+                    swap(j - 1, j);
+                }
+            }
+        }
+
+        private int medianOfThree(int a, int b, int c) {
+            if (compareEntries(a, b) < 0) {
+                return compareEntries(b, c) < 0 ? b : compareEntries(a, c) < 0 ? c : a;
+            }
+            return compareEntries(a, c) < 0 ? a : compareEntries(b, c) < 0 ? c : b;
+        }
+
+        private int compareEntries(int a, int b) {
+            return compare(entries[a * 4], entries[a * 4 + 1], entries[a * 4 + 2], entries[a * 4 + 3], entries[b * 4],
+                    entries[b * 4 + 1], entries[b * 4 + 2], entries[b * 4 + 3]);
+        }
+
+        private void swap(int a, int b) {
+            for (int k = 0; k < 4; k++) {
+                long entry = entries[a * 4 + k];
+                entries[a * 4 + k] = entries[b * 4 + k];
+                entries[b * 4 + k] = entry;
+            }
+            String text = texts[a];
+            texts[a] = texts[b];
+            texts[b] = text;
+        }
+    }
+
+    /**
+     * Writes run entries. The allele text follows the entry only for hashed keys.
+     */
+    private static class RunWriter implements AutoCloseable {
+        private final DataOutputStream out;
+
+        RunWriter(File file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER_SIZE));
+        }
+
+        void write(long locus, long high, long low, long ordinal, String text) throws IOException {
+            out.writeLong(locus);
+            out.writeLong(high);
+            out.writeLong(low);
+            out.writeLong(ordinal);
+            if ((high & VariantKey.EXACT_FLAG) == 0) {
+                byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads run entries one at a time
+     */
+    private static class RunReader implements Comparable<RunReader> {
+        private final DataInputStream in;
+        long locus;
+        long high;
+        long low;
+        long ordinal;
+        String text;
+
+        RunReader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE));
+        }
+
+        boolean next() throws IOException {
+            try {
+                locus = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            high = in.readLong();
+            low = in.readLong();
+            ordinal = in.readLong();
+            text = null;
+            if ((high & VariantKey.EXACT_FLAG) == 0) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                text = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return true;
+        }
+
+        @Override
+        public int compareTo(RunReader other) {
+            return compare(locus, high, low, ordinal, other.locus, other.high, other.low, other.ordinal);
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                log.warning("Unable to close run file: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Finds duplicates in the merged, sorted entries. Entries with the same key are consecutive; within them, hashed
+     * keys are only duplicates if the allele text is also the same.
+     */
+    private static class DuplicateFinder {
+        private final ObjLongConsumer<VariantKey> duplicateConsumer;
+        private final VariantKey key = new VariantKey();
+        private final List<String> textsOfKey = new ArrayList<>();
+        private boolean started;
+
+        DuplicateFinder(ObjLongConsumer<VariantKey> duplicateConsumer) {
+            this.duplicateConsumer = duplicateConsumer;
+        }
+
+        void accept(long locus, long high, long low, long ordinal, String text) {
+            if (!started || locus != key.getLocus() || high != key.getHigh() || low != key.getLow()) {
+                started = true;
+                key.set(locus, high, low);
+                textsOfKey.clear();
+                textsOfKey.add(text);
+                return;
+            }
+
+            if (text != null && !textsOfKey.contains(text)) {
+                textsOfKey.add(text);
+                return;
+            }
+
+            key.setAlleleText(text);
+            duplicateConsumer.accept(key, ordinal);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * A histogram with a fixed set of buckets held in a primitive array, so adding a value is a bucket calculation and an
+ * increment. Buckets are either equal width between a minimum and a maximum, or powers of two for values that range over
+ * several orders of magnitude: [0,1), [1,2), [2,4), [4,8) and so on. Histograms with the same buckets can be merged,
+ * such as those of different workers or of snapshots written by different runs. Not thread safe.
+ *
+ * @author j
+ *
+ */
+public class FixedBucketHistogram {
+    private static final MathContext BOUND_PRECISION = new MathContext(6);
+
+    private final boolean logScale;
+    private final double min;
+    private final double max;
+    private final long[] counts;
+    private long below;
+    private long above;
+    private long missing;
+
+    private FixedBucketHistogram(boolean logScale, double min, double max, int numberOfBuckets) {
+        this.logScale = logScale;
+        this.min = min;
+        this.max = max;
+        this.counts = new long[numberOfBuckets];
+    }
+
+    /**
+     * Create a histogram of equal width buckets. The last bucket includes the maximum.
+     *
+     * @param min
+     * @param max
+     * @param numberOfBuckets
+     * @return
+     */
+    public static FixedBucketHistogram linear(double min, double max, int numberOfBuckets) {
+        return new FixedBucketHistogram(false, min, max, numberOfBuckets);
+    }
+
+    /**
+     * Create a histogram of power of two buckets, from [0,1) up to [2^(numberOfBuckets-2), 2^(numberOfBuckets-1))
+     *
+     * @param numberOfBuckets
+     * @return
+     */
+    public static FixedBucketHistogram log2(int numberOfBuckets) {
+        return new FixedBucketHistogram(true, 0, Math.scalb(1.0, numberOfBuckets - 1), numberOfBuckets);
+    }
+
+    public void add(double value) {
+        if (Double.isNaN(value)) {
+            missing++;
+        } else if (value < min) {
+            below++;
+        } else if (logScale) {
+            // Math.getExponent is floor(log2) for values of 1 or more
+            int bucket = value < 1 ? 0 : Math.getExponent(value) + 1;
+            if (bucket < counts.length) {
+                counts[bucket]++;
+            } else {
+                above++;
+            }
+        } else if (value > max) {
+            above++;
+        } else {
+            int bucket = (int) ((value - min) / (max - min) * counts.length);
+            counts[Math.min(bucket, counts.length - 1)]++;
+        }
+    }
+
+    /**
+     * Count a record that does not have the value
+     */
+    public void addMissing() {
+        missing++;
+    }
+
+    /**
+     * Add another histogram's counts to this one's. The histograms must have the same buckets.
+     *
+     * @param other
+     */
+    public void merge(FixedBucketHistogram other) {
+        if (other.logScale != logScale || other.min != min || other.max != max || other.counts.length != counts.length) {
+            throw new IllegalArgumentException("Histograms have different buckets");
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        below += other.below;
+        above += other.above;
+        missing += other.missing;
+    }
+
+    /**
+     * Write the buckets and counts to a snapshot
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeBoolean(logScale);
+        out.writeDouble(min);
+        out.writeDouble(max);
+        out.writeInt(counts.length);
+        for (long count : counts) {
+            out.writeLong(count);
+        }
+        out.writeLong(below);
+        out.writeLong(above);
+        out.writeLong(missing);
+    }
+
+    /**
+     * Add the counts of a histogram written by write() to this one's. The histograms must have the same buckets.
+     *
+     * @param in
+     * @throws IOException
+     */
+    public void read(DataInputStream in) throws IOException {
+        if (in.readBoolean() != logScale || in.readDouble() != min || in.readDouble() != max
+                || in.readInt() != counts.length) {
+            throw new IOException("Histograms have different buckets");
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += in.readLong();
+        }
+        below += in.readLong();
+        above += in.readLong();
+        missing += in.readLong();
+    }
+
+    public int getNumberOfBuckets() {
+        return counts.length;
+    }
+
+    public long getCount(int bucket) {
+        return counts[bucket];
+    }
+
+    public long getMissing() {
+        return missing;
+    }
+
+    /**
+     * Return the lower bound of a bucket
+     *
+     * @param bucket
+     * @return
+     */
+    public double getLowerBound(int bucket) {
+        if (logScale) {
+            return bucket == 0 ? 0 : Math.scalb(1.0, bucket - 1);
+        }
+        return min + (max - min) * bucket / counts.length;
+    }
+
+    /**
+     * Return the upper bound of a bucket, which is not in the bucket except for the last bucket of a linear histogram
+     *
+     * @param bucket
+     * @return
+     */
+    public double getUpperBound(int bucket) {
+        if (logScale) {
+            return Math.scalb(1.0, bucket);
+        }
+        return min + (max - min) * (bucket + 1) / counts.length;
+    }
+
+    /**
+     * Return the histogram as tab separated lines of bucket and count. Empty buckets after the last used one are left
+     * out.
+     *
+     * @param delimiter
+     * @return
+     */
+    public String format(String delimiter) {
+        StringBuilder builder = new StringBuilder("bucket").append(delimiter).append("count");
+        if (below > 0) {
+            builder.append("\n<").append(formatBound(min)).append(delimiter).append(below);
+        }
+
+        int last = counts.length - 1;
+        while (last > 0 && counts[last] == 0) {
+            last--;
+        }
+        for (int i = 0; i <= last; i++) {
+            builder.append("\n[").append(formatBound(getLowerBound(i))).append(",")
+                    .append(formatBound(getUpperBound(i))).append(!logScale && i == counts.length - 1 ? "]" : ")")
+                    .append(delimiter).append(counts[i]);
+        }
+
+        if (above > 0) {
+            builder.append("\n>").append(logScale ? "=" : "").append(formatBound(max)).append(delimiter)
+                    .append(above);
+        }
+        builder.append("\nmissing").append(delimiter).append(missing);
+        return builder.toString();
+    }
+
+    private static String formatBound(double bound) {
+        // Rounded so that bounds such as 0.15 are not printed as 0.15000000000000002
+        return BigDecimal.valueOf(bound).round(BOUND_PRECISION).stripTrailingZeros().toPlainString();
+    }
+}
@@ -0,0 +1,87 @@
+package io.github.jpleyte.vcf.detail;
+
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.GenotypesContext;
+import htsjdk.variant.variantcontext.LazyGenotypesContext;
+import htsjdk.variant.variantcontext.VariantContext;
+
+/**
+ * Records are duplicates if they have the same contig, position, alleles and genotype columns. The genotype columns are
+ * hashed from the text the codec left unparsed, so the genotypes are never decoded.
+ *
+ * An exact allele key only uses its low bits, so when the alleles are short the genotype hash fills the bits above them.
+ * The alleles are still compared exactly, only the genotype columns are compared by hash, and no allele text has to be
+ * kept to confirm the key. Longer alleles fall back to a hashed key of both, confirmed by the allele text as usual.
+ *
+ * @author j
+ *
+ */
+public class GenotypeKeyExtractor implements VariantKeyExtractor {
+    // Exact alleles are kept if this leaves at least 64 bits of genotype hash; the rest of the key is the lengths
+    private static final int MAX_EXACT_ALLELE_BITS = 63;
+    private static final int LENGTH_BITS = 12;
+
+    private final VariantKeyEncoder variantKeyEncoder;
+
+    /**
+     * Constructor
+     *
+     * @param contigIndex
+     */
+    public GenotypeKeyExtractor(ContigIndex contigIndex) {
+        this(new VariantKeyEncoder(contigIndex));
+    }
+
+    /**
+     * Constructor for an extractor that uses a configured encoder, such as one that normalizes alleles
+     *
+     * @param variantKeyEncoder
+     */
+    public GenotypeKeyExtractor(VariantKeyEncoder variantKeyEncoder) {
+        this.variantKeyEncoder = variantKeyEncoder;
+    }
+
+    @Override
+    public boolean extract(VariantContext vc, VariantKey key) {
+        variantKeyEncoder.encode(vc, key);
+
+        long genotypeHigh = VariantKeyEncoder.SEED_HIGH;
+        long genotypeLow = VariantKeyEncoder.SEED_LOW;
+        GenotypesContext genotypes = vc.getGenotypes();
+        Object unparsed = genotypes instanceof LazyGenotypesContext
+                ? ((LazyGenotypesContext) genotypes).getUnparsedGenotypeData()
+                : null;
+        if (unparsed instanceof String) {
+            genotypeHigh = VariantKeyEncoder.hash((String) unparsed, genotypeHigh);
+            genotypeLow = VariantKeyEncoder.hash((String) unparsed, genotypeLow);
+        } else {
+            // Genotypes that were already decoded, or come from a codec that does not keep the text
+            for (Genotype genotype : genotypes) {
+                String text = genotype.toString();
+                genotypeHigh = VariantKeyEncoder.hash(text, genotypeHigh);
+                genotypeLow = VariantKeyEncoder.hash(text, genotypeLow);
+            }
+        }
+
+        if (key.isExact()) {
+            long low = key.getLow();
+            int alleleBits = LENGTH_BITS + 2 * ((int) (low >>> 6 & 0x3f) + (int) (low & 0x3f));
+            if (alleleBits <= MAX_EXACT_ALLELE_BITS) {
+                key.set(key.getLocus(), key.getHigh() | (genotypeHigh & ~VariantKey.EXACT_FLAG),
+                        low | (genotypeLow & (-1L << alleleBits)));
+                return true;
+            }
+        }
+
+        // The alleles do not leave room for the genotype hash, so the key is hashed and the allele text confirms it
+        long high = VariantKeyEncoder.mix(key.getHigh() ^ genotypeHigh);
+        long low = VariantKeyEncoder.mix(key.getLow() + genotypeLow * 0x9E3779B97F4A7C15L);
+        key.set(key.getLocus(), high & ~VariantKey.EXACT_FLAG, low);
+        return true;
+    }
+
+    @Override
+    public boolean isPositional() {
+        return true;
+    }
+}
@@ -0,0 +1,176 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import io.github.jpleyte.log.BootstrapLogger;
+
+/**
+ * The keys whose alleles are hashed rather than packed exactly, with their allele text, so that two equal hashed keys are
+ * confirmed to be the same variant. Not thread safe; callers hold the lock of the index that uses it.
+ *
+ * There are no per key objects. The keys are in an open addressing table of 32 byte slots (locus, high, low and a
+ * reference to the text), and the texts are appended to an arena of buffer chunks. Each text entry links to the next
+ * text with the same key, for the rare different alleles with the same hash. The buffers come from a BufferAllocator, so
+ * an off heap index keeps the texts off the heap too.
+ *
+ * @author j
+ *
+ */
+class HashedAlleleTexts {
+    private static final Logger log = BootstrapLogger.configureLogger(HashedAlleleTexts.class.getName());
+
+    private static final int SLOT_BYTES = 32;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MAX_CAPACITY = Integer.highestOneBit(Integer.MAX_VALUE / SLOT_BYTES);
+    private static final int MIN_CHUNK_BYTES = 4096;
+    private static final int MAX_CHUNK_BYTES = 1 << 24;
+    // A text entry is the reference of the next entry with the same key, the text's length and its bytes
+    private static final int ENTRY_HEADER_BYTES = 12;
+    private static final long NO_ENTRY = -1;
+
+    private final BufferAllocator allocator;
+    private ByteBuffer slots;
+    private int capacity;
+    private int size;
+
+    // A text reference is the chunk index in the upper 32 bits and the offset in the chunk in the lower 32
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer chunk;
+
+    /**
+     * Constructor
+     *
+     * @param allocator where the table and texts are kept
+     */
+    HashedAlleleTexts(BufferAllocator allocator) {
+        this.allocator = allocator;
+        this.capacity = INITIAL_CAPACITY;
+        this.slots = allocator.allocate(capacity * SLOT_BYTES);
+    }
+
+    /**
+     * Add a hashed key. If the key is already there but the text differs, two different variants have the same hash,
+     * and the variant is not a duplicate.
+     *
+     * @param key
+     * @return true if the variant had not been seen before
+     */
+    boolean add(VariantKey key) {
+        byte[] text = key.getAlleleText().getBytes(StandardCharsets.UTF_8);
+        long locus = key.getLocus();
+        long high = key.getHigh();
+        long low = key.getLow();
+
+        int slot = key.hashCode() & (capacity - 1);
+        while (slots.getLong(slot * SLOT_BYTES) != 0) {
+            int offset = slot * SLOT_BYTES;
+            if (slots.getLong(offset) == locus && slots.getLong(offset + 8) == high
+                    && slots.getLong(offset + 16) == low) {
+                // The key's texts; a new text goes to the front of the list
+                long head = slots.getLong(offset + 24);
+                for (long entry = head; entry != NO_ENTRY; entry = getNextEntry(entry)) {
+                    if (hasText(entry, text)) {
+                        return false;
+                    }
+                }
+                slots.putLong(offset + 24, appendText(text, head));
+                return true;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+
+        put(slots, slot, locus, high, low, appendText(text, NO_ENTRY));
+        if (++size > capacity / 2) {
+            resize();
+        }
+        return true;
+    }
+
+    /**
+     * Free the buffers. The texts are not used again.
+     */
+    void release() {
+        allocator.free(slots);
+        slots = null;
+        for (ByteBuffer buffer : chunks) {
+            allocator.free(buffer);
+        }
+        chunks.clear();
+        chunk = null;
+    }
+
+    private long appendText(byte[] text, long next) {
+        int bytes = ENTRY_HEADER_BYTES + text.length;
+        if (chunk == null || chunk.remaining() < bytes) {
+            int chunkBytes = chunk == null ? MIN_CHUNK_BYTES : Math.min(MAX_CHUNK_BYTES, chunk.capacity() * 2);
+            chunk = allocator.allocate(Math.max(chunkBytes, bytes));
+            chunks.add(chunk);
+        }
+
+        long entry = ((long) (chunks.size() - 1) << 32) | chunk.position();
+        chunk.putLong(next);
+        chunk.putInt(text.length);
+        chunk.put(text);
+        return entry;
+    }
+
+    private long getNextEntry(long entry) {
+        return chunks.get((int) (entry >>> 32)).getLong((int) entry);
+    }
+
+    private boolean hasText(long entry, byte[] text) {
+        ByteBuffer buffer = chunks.get((int) (entry >>> 32));
+        int offset = (int) entry + 8;
+        if (buffer.getInt(offset) != text.length) {
+            return false;
+        }
+        offset += 4;
+        for (int i = 0; i < text.length; i++) {
+            if (buffer.get(offset + i) != text[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void resize() {
+        if (capacity == MAX_CAPACITY) {
+            // Above half full probing slows down, but the table still works until it is completely full
+            if (size == capacity - 1) {
+                log.severe("The table of hashed variant keys is full; increase expectedVariants so the keys are spread "
+                        + "over more tables");
+                System.exit(1);
+            }
+            return;
+        }
+
+        ByteBuffer old = slots;
+        int oldCapacity = capacity;
+        capacity <<= 1;
+        slots = allocator.allocate(capacity * SLOT_BYTES);
+        for (int i = 0; i < oldCapacity; i++) {
+            long locus = old.getLong(i * SLOT_BYTES);
+            if (locus != 0) {
+                long high = old.getLong(i * SLOT_BYTES + 8);
+                long low = old.getLong(i * SLOT_BYTES + 16);
+                int slot = VariantKey.hash(locus, high, low) & (capacity - 1);
+                while (slots.getLong(slot * SLOT_BYTES) != 0) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                put(slots, slot, locus, high, low, old.getLong(i * SLOT_BYTES + 24));
+            }
+        }
+        allocator.free(old);
+    }
+
+    private static void put(ByteBuffer buffer, int slot, long locus, long high, long low, long entry) {
+        buffer.putLong(slot * SLOT_BYTES, locus);
+        buffer.putLong(slot * SLOT_BYTES + 8, high);
+        buffer.putLong(slot * SLOT_BYTES + 16, low);
+        buffer.putLong(slot * SLOT_BYTES + 24, entry);
+    }
+}
@@ -0,0 +1,64 @@
+package io.github.jpleyte.vcf.detail;
+
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFConstants;
+
+/**
+ * Records are duplicates if they have the same ID, wherever they are. Records without an ID are never duplicates.
+ *
+ * dbSNP IDs (rs followed by up to 18 digits) are packed into the key exactly. Other IDs are hashed and confirmed with
+ * their text like hashed alleles.
+ *
+ * @author j
+ *
+ */
+public class IdKeyExtractor implements VariantKeyExtractor {
+    private static final int MAX_EXACT_DIGITS = 18;
+
+    @Override
+    public boolean extract(VariantContext vc, VariantKey key) {
+        String id = vc.getID();
+        if (id == null || VCFConstants.EMPTY_ID_FIELD.equals(id)) {
+            return false;
+        }
+
+        long number = parseDbSnpNumber(id);
+        if (number >= 0) {
+            key.set(VariantKey.ID_LOCUS, VariantKey.EXACT_FLAG, number);
+        } else {
+            long high = VariantKeyEncoder.hash(id, VariantKeyEncoder.SEED_HIGH);
+            long low = VariantKeyEncoder.hash(id, VariantKeyEncoder.SEED_LOW);
+            key.set(VariantKey.ID_LOCUS, high & ~VariantKey.EXACT_FLAG, low);
+        }
+        key.setAlleleText(id);
+        return true;
+    }
+
+    @Override
+    public boolean isPositional() {
+        return false;
+    }
+
+    /**
+     * Return the number of a dbSNP ID such as rs123, or -1 if the ID is not one
+     *
+     * @param id
+     * @return
+     */
+    private static long parseDbSnpNumber(String id) {
+        int length = id.length();
+        if (length < 3 || length > 2 + MAX_EXACT_DIGITS || id.charAt(0) != 'r' || id.charAt(1) != 's') {
+            return -1;
+        }
+
+        long number = 0;
+        for (int i = 2; i < length; i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            number = number * 10 + (c - '0');
+        }
+        return number;
+    }
+}
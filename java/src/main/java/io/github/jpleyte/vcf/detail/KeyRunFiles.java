@@ -0,0 +1,214 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.logging.Logger;
+
+import io.github.jpleyte.log.BootstrapLogger;
+
+/**
+ * Sorted runs of variant keys in temporary files, as written by a VariantKeyCollector, merged back in one pass. Keys
+ * that are in more than one run are given once. Only one key per run is in memory while merging, so there can be far
+ * more keys than fit on the heap.
+ *
+ * @author j
+ *
+ */
+public class KeyRunFiles implements VariantKeyCollector.RunConsumer {
+    private static final Logger log = BootstrapLogger.configureLogger(KeyRunFiles.class.getName());
+
+    // The most runs merged at once; more runs are first merged into larger runs
+    private static final int MAX_MERGE_WIDTH = 128;
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+
+    private final File tempDirectory;
+    private final List<File> runs = new ArrayList<>();
+
+    /**
+     * Receives the merged keys in order
+     */
+    public interface KeyConsumer {
+        void accept(long locus, long high, long low) throws IOException;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param tempDirectory directory for the run files
+     */
+    public KeyRunFiles(File tempDirectory) {
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * Write a sorted run of keys to a new run file. Called by the threads that add keys to the collector.
+     */
+    @Override
+    public void accept(long[] keys, int numberOfKeys) {
+        File file = createRunFile();
+        try (DataOutputStream out = openRun(file)) {
+            for (int i = 0; i < numberOfKeys * 3; i++) {
+                out.writeLong(keys[i]);
+            }
+        } catch (IOException e) {
+            fail("Unable to write " + file, e);
+        }
+        synchronized (runs) {
+            runs.add(file);
+        }
+    }
+
+    /**
+     * Merge the runs, give each distinct key to the consumer in order, and delete the runs. Only call this once the
+     * collector has been flushed.
+     *
+     * @param consumer
+     * @return the number of distinct keys
+     * @throws IOException if the consumer fails
+     */
+    public long merge(KeyConsumer consumer) throws IOException {
+        List<File> remaining;
+        synchronized (runs) {
+            remaining = new ArrayList<>(runs);
+            runs.clear();
+        }
+        log.fine("Merging " + remaining.size() + " runs of keys");
+
+        try {
+            while (remaining.size() > MAX_MERGE_WIDTH) {
+                List<File> group = new ArrayList<>(remaining.subList(0, MAX_MERGE_WIDTH));
+                File merged = createRunFile();
+                try (DataOutputStream out = openRun(merged)) {
+                    merge(group, (locus, high, low) -> {
+                        out.writeLong(locus);
+                        out.writeLong(high);
+                        out.writeLong(low);
+                    });
+                } catch (IOException e) {
+                    fail("Unable to write " + merged, e);
+                }
+                deleteRuns(group);
+                remaining.removeAll(group);
+                remaining.add(merged);
+            }
+            return merge(remaining, consumer);
+        } finally {
+            deleteRuns(remaining);
+        }
+    }
+
+    private static long merge(List<File> files, KeyConsumer consumer) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, files.size()));
+        long merged = 0;
+        try {
+            for (File file : files) {
+                RunReader reader = new RunReader(file);
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+
+            long lastLocus = 0;
+            long lastHigh = 0;
+            long lastLow = 0;
+            RunReader reader;
+            while ((reader = queue.poll()) != null) {
+                if (merged == 0 || reader.locus != lastLocus || reader.high != lastHigh || reader.low != lastLow) {
+                    consumer.accept(reader.locus, reader.high, reader.low);
+                    lastLocus = reader.locus;
+                    lastHigh = reader.high;
+                    lastLow = reader.low;
+                    merged++;
+                }
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+        } finally {
+            for (RunReader open : queue) {
+                open.close();
+            }
+        }
+        return merged;
+    }
+
+    private File createRunFile() {
+        try {
+            File file = File.createTempFile("exported-keys-", ".run", tempDirectory);
+            file.deleteOnExit();
+            return file;
+        } catch (IOException e) {
+            fail("Unable to create a run file in " + tempDirectory, e);
+            return null;
+        }
+    }
+
+    private static DataOutputStream openRun(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER_SIZE));
+    }
+
+    private static void deleteRuns(List<File> files) {
+        for (File file : files) {
+            if (file.exists() && !file.delete()) {
+                log.warning("Unable to delete " + file);
+            }
+        }
+    }
+
+    private static void fail(String message, IOException e) {
+        log.severe(message + ": " + e.getMessage());
+        System.exit(1);
+    }
+
+    /**
+     * Reads the keys of a run one at a time
+     */
+    private static class RunReader implements Comparable<RunReader> {
+        private final DataInputStream in;
+        long locus;
+        long high;
+        long low;
+
+        RunReader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE));
+        }
+
+        boolean next() throws IOException {
+            try {
+                locus = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            high = in.readLong();
+            low = in.readLong();
+            return true;
+        }
+
+        @Override
+        public int compareTo(RunReader other) {
+            return VariantKeyCollector.compare(locus, high, low, other.locus, other.high, other.low);
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                log.warning("Unable to close run file: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+import htsjdk.samtools.reference.FastaSequenceIndex;
+import htsjdk.samtools.reference.FastaSequenceIndexEntry;
+import io.github.jpleyte.log.BootstrapLogger;
+
+/**
+ * A FASTA file with a samtools .fai index, memory mapped so that bases are read without system calls or copies. The
+ * file is mapped in chunks because a single buffer cannot be larger than 2 GB. Only absolute reads are used, so one
+ * instance can be shared by every thread.
+ *
+ * @author j
+ *
+ */
+public class MappedFastaReference {
+    private static final Logger log = BootstrapLogger.configureLogger(MappedFastaReference.class.getName());
+
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+
+    private final FastaSequenceIndex index;
+    private final MappedByteBuffer[] chunks;
+
+    /**
+     * Constructor
+     *
+     * @param fastaFile a FASTA file with an index next to it (fastaFile.fai)
+     */
+    public MappedFastaReference(File fastaFile) {
+        index = new FastaSequenceIndex(new File(fastaFile.getPath() + ".fai"));
+
+        try (RandomAccessFile raf = new RandomAccessFile(fastaFile, "r"); FileChannel channel = raf.getChannel()) {
+            long length = channel.size();
+            chunks = new MappedByteBuffer[(int) ((length + CHUNK_SIZE - 1) >>> CHUNK_BITS)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = (long) i << CHUNK_BITS;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, length - start));
+            }
+        } catch (IOException e) {
+            log.severe("Unable to map reference " + fastaFile + ": " + e.getMessage());
+            System.exit(1);
+            throw new IllegalStateException(e);
+        }
+        log.fine("Mapped " + index.size() + " reference sequences from " + fastaFile);
+    }
+
+    /**
+     * Return the index entry of a contig, or null if the reference does not have it
+     *
+     * @param contig
+     * @return
+     */
+    public FastaSequenceIndexEntry getEntry(String contig) {
+        return index.hasIndexEntry(contig) ? index.getIndexEntry(contig) : null;
+    }
+
+    /**
+     * Copy upper case bases of a contig into a buffer
+     *
+     * @param entry
+     * @param start first position, counting from 1
+     * @param bases
+     * @param length number of bases to copy; the caller keeps them within the contig
+     */
+    public void getBases(FastaSequenceIndexEntry entry, long start, byte[] bases, int length) {
+        int basesPerLine = entry.getBasesPerLine();
+        int bytesPerLine = entry.getBytesPerLine();
+        for (int i = 0; i < length; i++) {
+            long base = start - 1 + i;
+            long offset = entry.getLocation() + base / basesPerLine * bytesPerLine + base % basesPerLine;
+            byte b = chunks[(int) (offset >>> CHUNK_BITS)].get((int) (offset & (CHUNK_SIZE - 1)));
+            bases[i] = b >= 'a' && b <= 'z' ? (byte) (b - ('a' - 'A')) : b;
+        }
+    }
+}
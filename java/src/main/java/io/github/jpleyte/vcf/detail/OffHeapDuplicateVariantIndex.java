@@ -0,0 +1,189 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+import io.github.jpleyte.log.BootstrapLogger;
+
+/**
+ * Duplicate variant index whose keys are kept outside the Java heap, for VCFs with too many variants for a heap based
+ * index. The table is sized from the expected number of variants and split into segments, each an open addressing hash
+ * table of 24 byte slots in a direct ByteBuffer or in a memory mapped file. Like the stripes of
+ * StripedDuplicateVariantIndex, each segment has its own lock.
+ *
+ * The segment and the slot within it are picked from the high and low bits of a 64 bit hash, so they never share bits
+ * however many segments there are.
+ *
+ * A segment that fills up beyond the expected count is doubled, up to the largest buffer Java can address, and the old
+ * buffer is freed at once. Hashed keys and their allele text are kept in a separate table per segment, in buffers from
+ * the same place, so nothing per key is kept on the heap.
+ *
+ * @author j
+ *
+ */
+public class OffHeapDuplicateVariantIndex implements DuplicateVariantIndex {
+    private static final Logger log = BootstrapLogger.configureLogger(OffHeapDuplicateVariantIndex.class.getName());
+
+    private static final int SLOT_BYTES = 24;
+    private static final int SEGMENTS_PER_THREAD = 16;
+    private static final int MIN_SEGMENTS = 64;
+    private static final int MIN_SEGMENT_CAPACITY = 64;
+    // The largest power of two number of slots that fits in one ByteBuffer
+    private static final int MAX_SEGMENT_CAPACITY = Integer.highestOneBit(Integer.MAX_VALUE / SLOT_BYTES);
+    private static final int MAX_SEGMENTS = 1 << 30;
+
+    private Segment[] segments;
+    private final int segmentShift;
+    private final BufferAllocator allocator;
+
+    /**
+     * Constructor
+     *
+     * @param expectedVariants the number of distinct variants the table is sized for
+     * @param numberOfThreads the number of threads that will add variants at the same time
+     * @param mapDirectory directory for the memory mapped files, or null to use direct buffers
+     */
+    public OffHeapDuplicateVariantIndex(long expectedVariants, int numberOfThreads, File mapDirectory) {
+        this.allocator = BufferAllocator.offHeap(mapDirectory);
+
+        // Keep the table at most half full
+        long capacity = Long.highestOneBit(Math.max(1, expectedVariants * 2 - 1)) << 1;
+        int numberOfSegments = Integer.highestOneBit(Math.max(MIN_SEGMENTS, numberOfThreads * SEGMENTS_PER_THREAD) - 1) << 1;
+        while (capacity / numberOfSegments > MAX_SEGMENT_CAPACITY) {
+            if (numberOfSegments == MAX_SEGMENTS) {
+                log.severe("expectedVariants of " + expectedVariants + " is more than an off heap index can hold");
+                System.exit(1);
+            }
+            numberOfSegments <<= 1;
+        }
+        int segmentCapacity = (int) Math.max(MIN_SEGMENT_CAPACITY, capacity / numberOfSegments);
+        segmentShift = Long.SIZE - Integer.numberOfTrailingZeros(numberOfSegments);
+
+        log.fine("Allocating " + numberOfSegments + " segments of " + segmentCapacity + " slots ("
+                + ((long) numberOfSegments * segmentCapacity * SLOT_BYTES >> 20) + " MB) "
+                + (mapDirectory == null ? "off heap" : "mapped in " + mapDirectory));
+
+        segments = new Segment[numberOfSegments];
+        for (int i = 0; i < numberOfSegments; i++) {
+            segments[i] = new Segment(allocator.allocate(segmentCapacity * SLOT_BYTES));
+        }
+    }
+
+    @Override
+    public boolean add(VariantKey key) {
+        long hash = VariantKey.hash64(key.getLocus(), key.getHigh(), key.getLow());
+
+        // The high bits of the hash pick the segment and the low bits pick the slot within the segment
+        Segment segment = segments[(int) (hash >>> segmentShift)];
+        synchronized (segment) {
+            if (key.isExact()) {
+                return segment.add(key.getLocus(), key.getHigh(), key.getLow(), (int) hash);
+            }
+            return segment.addHashed(key);
+        }
+    }
+
+    /**
+     * Free the buffers and delete any mapped files
+     */
+    @Override
+    public void release() {
+        if (segments == null) {
+            return;
+        }
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.release();
+            }
+        }
+        segments = null;
+        allocator.deleteMappedFiles();
+    }
+
+    /**
+     * A linear probing hash table of keys in a buffer. Callers must hold the segment's lock.
+     */
+    private class Segment {
+        private ByteBuffer slots;
+        private int capacity;
+        private int size;
+
+        // Hashed keys and their allele text; only created if the segment holds a hashed key
+        private HashedAlleleTexts alleleTexts;
+
+        Segment(ByteBuffer slots) {
+            this.slots = slots;
+            this.capacity = slots.capacity() / SLOT_BYTES;
+        }
+
+        boolean add(long locus, long high, long low, int hash) {
+            int slot = hash & (capacity - 1);
+            long existing;
+            while ((existing = slots.getLong(slot * SLOT_BYTES)) != 0) {
+                if (existing == locus && slots.getLong(slot * SLOT_BYTES + 8) == high
+                        && slots.getLong(slot * SLOT_BYTES + 16) == low) {
+                    return false;
+                }
+                slot = (slot + 1) & (capacity - 1);
+            }
+
+            put(slots, slot, locus, high, low);
+            if (++size > capacity / 2) {
+                resize();
+            }
+            return true;
+        }
+
+        boolean addHashed(VariantKey key) {
+            if (alleleTexts == null) {
+                alleleTexts = new HashedAlleleTexts(allocator);
+            }
+            return alleleTexts.add(key);
+        }
+
+        void release() {
+            allocator.free(slots);
+            slots = null;
+            if (alleleTexts != null) {
+                alleleTexts.release();
+                alleleTexts = null;
+            }
+        }
+
+        private void resize() {
+            if (capacity == MAX_SEGMENT_CAPACITY) {
+                // Above half full probing slows down, but the table still works until it is completely full
+                if (size == capacity - 1) {
+                    log.severe("The duplicate index is full; increase expectedVariants");
+                    System.exit(1);
+                }
+                return;
+            }
+
+            ByteBuffer old = slots;
+            int oldCapacity = capacity;
+            capacity <<= 1;
+            slots = allocator.allocate(capacity * SLOT_BYTES);
+            for (int i = 0; i < oldCapacity; i++) {
+                long locus = old.getLong(i * SLOT_BYTES);
+                if (locus != 0) {
+                    long high = old.getLong(i * SLOT_BYTES + 8);
+                    long low = old.getLong(i * SLOT_BYTES + 16);
+                    int slot = (int) VariantKey.hash64(locus, high, low) & (capacity - 1);
+                    while (slots.getLong(slot * SLOT_BYTES) != 0) {
+                        slot = (slot + 1) & (capacity - 1);
+                    }
+                    put(slots, slot, locus, high, low);
+                }
+            }
+            allocator.free(old);
+        }
+
+        private void put(ByteBuffer buffer, int slot, long locus, long high, long low) {
+            buffer.putLong(slot * SLOT_BYTES, locus);
+            buffer.putLong(slot * SLOT_BYTES + 8, high);
+            buffer.putLong(slot * SLOT_BYTES + 16, low);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package io.github.jpleyte.vcf.detail;
+
+import htsjdk.variant.variantcontext.VariantContext;
+
+/**
+ * Records are duplicates if they have the same contig and position, whatever their alleles
+ *
+ * @author j
+ *
+ */
+public class PositionKeyExtractor implements VariantKeyExtractor {
+    private final VariantKeyEncoder variantKeyEncoder;
+
+    /**
+     * Constructor
+     *
+     * @param contigIndex
+     */
+    public PositionKeyExtractor(ContigIndex contigIndex) {
+        this.variantKeyEncoder = new VariantKeyEncoder(contigIndex);
+    }
+
+    @Override
+    public boolean extract(VariantContext vc, VariantKey key) {
+        key.set(VariantKey.toLocus(variantKeyEncoder.getContigIndex(vc.getContig()), vc.getStart()),
+                VariantKey.EXACT_FLAG, 0);
+        key.setAlleleText("");
+        return true;
+    }
+
+    @Override
+    public boolean isPositional() {
+        return true;
+    }
+}
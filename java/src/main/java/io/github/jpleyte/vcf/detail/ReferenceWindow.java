@@ -0,0 +1,70 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import htsjdk.samtools.reference.FastaSequenceIndexEntry;
+import io.github.jpleyte.log.BootstrapLogger;
+
+/**
+ * A worker's copy of the reference around the records it is looking at. Records in a batch are close together, so most
+ * lookups are served from the window without touching the mapped file. Not thread safe; each worker needs its own.
+ *
+ * @author j
+ *
+ */
+public class ReferenceWindow {
+    private static final Logger log = BootstrapLogger.configureLogger(ReferenceWindow.class.getName());
+
+    private static final int WINDOW_SIZE = 64 * 1024;
+    // Bases kept after the position that caused a load; left alignment walks left, so most of the window is before it
+    private static final int BASES_AFTER = 1024;
+
+    private final MappedFastaReference reference;
+    private final byte[] bases = new byte[WINDOW_SIZE];
+    private final Set<String> missingContigs = new HashSet<>();
+
+    private String contig;
+    private FastaSequenceIndexEntry entry;
+    private long windowStart;
+    private int windowLength;
+
+    /**
+     * Constructor
+     *
+     * @param reference
+     */
+    public ReferenceWindow(MappedFastaReference reference) {
+        this.reference = reference;
+    }
+
+    /**
+     * Return the upper case reference base at a position, or 0 if the reference does not have it
+     *
+     * @param contig
+     * @param position counting from 1
+     * @return
+     */
+    public byte getBase(String contig, long position) {
+        if (!contig.equals(this.contig)) {
+            this.contig = contig;
+            this.entry = reference.getEntry(contig);
+            windowLength = 0;
+            if (entry == null && missingContigs.add(contig)) {
+                log.warning("Contig " + contig + " is not in the reference; its alleles are not normalized");
+            }
+        }
+
+        if (entry == null || position < 1 || position > entry.getSize()) {
+            return 0;
+        }
+
+        if (position < windowStart || position >= windowStart + windowLength) {
+            windowStart = Math.max(1, position + BASES_AFTER - WINDOW_SIZE);
+            windowLength = (int) Math.min(WINDOW_SIZE, entry.getSize() - windowStart + 1);
+            reference.getBases(entry, windowStart, bases, windowLength);
+        }
+        return bases[(int) (position - windowStart)];
+    }
+}
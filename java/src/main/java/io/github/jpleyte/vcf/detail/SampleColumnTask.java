@@ -0,0 +1,217 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Counts the genotypes of the sample columns of one wide record in ranges, so that the columns are spread over the
+ * workers that analyse records. The genotype text is split into ranges of about the same number of characters, each
+ * moved forward to the start of a column. The tabs in each range are counted to find the column each range starts
+ * at, then the genotypes of each range are counted. Nothing scans the whole text on one thread.
+ *
+ * Both steps are shared the same way: the worker that has the record claims ranges until none are left, and the helpers
+ * it hands off claim ranges too. A helper that starts after every range is claimed does nothing, so the record's worker
+ * only waits for ranges that a helper is already counting. Each thread counts into its own accumulator.
+ *
+ * @author j
+ *
+ */
+public class SampleColumnTask {
+    // Fewer columns than this are not worth splitting
+    private static final int MIN_COLUMNS_PER_RANGE = 1024;
+    private static final int RANGES_PER_THREAD = 4;
+
+    private final SampleGenotypeCounter sampleGenotypeCounter;
+    private final VcfDetailsModel vcfDetailsModel;
+    private final String text;
+    private final int genotypeField;
+    private final int firstColumn;
+    private final int numberOfRanges;
+    // Range i starts at offsets[i] and covers columns[i] up to columns[i + 1]
+    private final int[] offsets;
+    private final int[] columns;
+
+    private SampleColumnTask(SampleGenotypeCounter sampleGenotypeCounter, VcfDetailsModel vcfDetailsModel,
+            String text, int genotypeField, int firstColumn, int numberOfRanges) {
+        this.sampleGenotypeCounter = sampleGenotypeCounter;
+        this.vcfDetailsModel = vcfDetailsModel;
+        this.text = text;
+        this.genotypeField = genotypeField;
+        this.firstColumn = firstColumn;
+        this.numberOfRanges = numberOfRanges;
+        this.offsets = new int[numberOfRanges + 1];
+        this.columns = new int[numberOfRanges + 1];
+    }
+
+    /**
+     * Return true if a record with this many sample columns is wide enough to split
+     *
+     * @param numberOfColumns
+     * @return
+     */
+    public static boolean isWide(int numberOfColumns) {
+        return numberOfColumns >= MIN_COLUMNS_PER_RANGE * 2;
+    }
+
+    /**
+     * Count the genotypes of a record's genotype text in ranges, on the calling thread and on the workers that run
+     * the helpers
+     *
+     * @param helpers runs a helper on another thread if one is free; it must not block, and may drop the helper
+     * @param numberOfWorkers the number of workers, including the calling thread
+     * @param sampleGenotypeCounter
+     * @param vcfDetailsModel
+     * @param text the unparsed genotype text, starting with the FORMAT column
+     */
+    public static void count(Executor helpers, int numberOfWorkers, SampleGenotypeCounter sampleGenotypeCounter,
+            VcfDetailsModel vcfDetailsModel, String text) {
+        int genotypeField = SampleGenotypeCounter.findGenotypeField(text);
+        int firstColumn = text.indexOf('\t') + 1;
+        if (genotypeField < 0 || firstColumn == 0) {
+            return;
+        }
+
+        int numberOfColumns = sampleGenotypeCounter.getNumberOfColumns();
+        int numberOfRanges = Math.max(1, Math.min(numberOfWorkers * RANGES_PER_THREAD,
+                numberOfColumns / MIN_COLUMNS_PER_RANGE));
+        SampleColumnTask task = new SampleColumnTask(sampleGenotypeCounter, vcfDetailsModel, text, genotypeField,
+                firstColumn, numberOfRanges);
+        int numberOfHelpers = Math.min(numberOfWorkers, numberOfRanges) - 1;
+
+        new Step(numberOfRanges, task::countTabs).run(helpers, numberOfHelpers);
+
+        // Each range's tab count is held in the column of the range after it until they are added up
+        task.columns[0] = 0;
+        for (int range = 0; range < numberOfRanges; range++) {
+            task.columns[range + 1] = Math.min(numberOfColumns, task.columns[range] + task.columns[range + 1]);
+        }
+        task.columns[numberOfRanges] = numberOfColumns;
+
+        new Step(numberOfRanges, task::countGenotypes).run(helpers, numberOfHelpers);
+    }
+
+    /**
+     * Find where a range starts and count the columns that end in it
+     *
+     * @param range
+     */
+    private void countTabs(int range) {
+        int start = getStart(range);
+        int end = range + 1 < numberOfRanges ? getStart(range + 1) : text.length();
+        offsets[range] = start;
+
+        int tabs = 0;
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == '\t') {
+                tabs++;
+            }
+        }
+        columns[range + 1] = tabs;
+    }
+
+    private void countGenotypes(int range) {
+        if (columns[range] < columns[range + 1]) {
+            sampleGenotypeCounter.countColumns(text, genotypeField, columns[range], offsets[range],
+                    columns[range + 1], vcfDetailsModel.getAccumulator().getSampleGenotypeCounts());
+        }
+    }
+
+    /**
+     * Return where a range starts: its share of the text, moved forward to the start of the next column. A range with
+     * no column starting in it starts at the end of the text.
+     *
+     * @param range
+     * @return
+     */
+    private int getStart(int range) {
+        if (range == 0) {
+            return firstColumn;
+        }
+        int offset = firstColumn + (int) ((long) (text.length() - firstColumn) * range / numberOfRanges);
+        int tab = text.indexOf('\t', offset - 1);
+        return tab < 0 ? text.length() : tab + 1;
+    }
+
+    /**
+     * One step run on every range, by the calling thread and by any helpers that start before the ranges run out. The
+     * calling thread waits as a managed blocker, so a fork/join pool can keep its parallelism while it waits.
+     */
+    private static class Step implements Runnable, ForkJoinPool.ManagedBlocker {
+        private final int numberOfRanges;
+        private final IntConsumer work;
+        private final AtomicInteger nextRange = new AtomicInteger();
+        private int unfinishedRanges;
+        private RuntimeException failure;
+
+        Step(int numberOfRanges, IntConsumer work) {
+            this.numberOfRanges = numberOfRanges;
+            this.work = work;
+            this.unfinishedRanges = numberOfRanges;
+        }
+
+        /**
+         * Hand out helpers, work on the ranges, and wait for the ranges that helpers claimed
+         *
+         * @param helpers
+         * @param numberOfHelpers
+         */
+        void run(Executor helpers, int numberOfHelpers) {
+            for (int i = 0; i < numberOfHelpers; i++) {
+                helpers.execute(this);
+            }
+            run();
+
+            boolean interrupted = false;
+            while (!isReleasable()) {
+                try {
+                    ForkJoinPool.managedBlock(this);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        @Override
+        public void run() {
+            int range;
+            while ((range = nextRange.getAndIncrement()) < numberOfRanges) {
+                try {
+                    work.accept(range);
+                } catch (RuntimeException e) {
+                    synchronized (this) {
+                        failure = e;
+                    }
+                } finally {
+                    finish();
+                }
+            }
+        }
+
+        @Override
+        public synchronized boolean block() throws InterruptedException {
+            while (unfinishedRanges > 0) {
+                wait();
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isReleasable() {
+            return unfinishedRanges == 0;
+        }
+
+        private synchronized void finish() {
+            if (--unfinishedRanges == 0) {
+                notifyAll();
+            }
+        }
+    }
+}
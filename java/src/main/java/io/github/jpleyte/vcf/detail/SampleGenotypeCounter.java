@@ -0,0 +1,224 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.GenotypesContext;
+import htsjdk.variant.variantcontext.LazyGenotypesContext;
+import htsjdk.variant.variantcontext.VariantContext;
+
+/**
+ * Counts the hom ref, het, hom alt and missing genotypes of each selected sample. The GT subfield is read straight
+ * from the genotype text the codec left unparsed, so no Genotype objects are made and the other FORMAT fields are
+ * skipped over. A genotype with any missing allele, such as ./1, counts as missing.
+ *
+ * The counter only holds the sample selection, so one counter can be shared by every worker.
+ *
+ * @author j
+ *
+ */
+public class SampleGenotypeCounter {
+    private static final String GENOTYPE_KEY = "GT";
+
+    private final List<String> sampleNames;
+    // The count slot of each sample column, or -1 if the sample is not selected
+    private final int[] slots;
+
+    /**
+     * Constructor
+     *
+     * @param headerSamples the samples of the VCF, in column order
+     * @param selectedSamples the samples to count, or null for all of them
+     */
+    public SampleGenotypeCounter(List<String> headerSamples, Collection<String> selectedSamples) {
+        List<String> names = new ArrayList<>();
+        slots = new int[headerSamples.size()];
+        Arrays.fill(slots, -1);
+        for (int column = 0; column < slots.length; column++) {
+            String sample = headerSamples.get(column);
+            if (selectedSamples == null || selectedSamples.contains(sample)) {
+                slots[column] = names.size();
+                names.add(sample);
+            }
+        }
+        sampleNames = Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Return the selected samples, in the order of their counts
+     *
+     * @return
+     */
+    public List<String> getSampleNames() {
+        return sampleNames;
+    }
+
+    public int getNumberOfColumns() {
+        return slots.length;
+    }
+
+    /**
+     * Count the genotypes of a record
+     *
+     * @param vc
+     * @param counts
+     */
+    public void count(VariantContext vc, SampleGenotypeCounts counts) {
+        String text = getUnparsedGenotypes(vc);
+        if (text != null) {
+            int genotypeField = findGenotypeField(text);
+            int firstColumn = text.indexOf('\t') + 1;
+            if (genotypeField >= 0 && firstColumn > 0) {
+                countColumns(text, genotypeField, 0, firstColumn, slots.length, counts);
+            }
+            return;
+        }
+
+        // Genotypes that were already decoded, or come from a codec that does not keep the text
+        GenotypesContext genotypes = vc.getGenotypes();
+        for (int column = 0; column < genotypes.size() && column < slots.length; column++) {
+            if (slots[column] >= 0) {
+                counts.increment(slots[column], classify(genotypes.get(column)));
+            }
+        }
+    }
+
+    /**
+     * Count the genotypes in a range of sample columns of a record's genotype text
+     *
+     * @param text the unparsed genotype text, starting with the FORMAT column
+     * @param genotypeField the position of GT among the FORMAT fields
+     * @param fromColumn the first sample column to count, counting from 0
+     * @param offset where the first sample column starts in the text
+     * @param toColumn the sample column after the last one to count
+     * @param counts
+     */
+    public void countColumns(String text, int genotypeField, int fromColumn, int offset, int toColumn,
+            SampleGenotypeCounts counts) {
+        int length = text.length();
+        int column = fromColumn;
+        while (column < toColumn && offset <= length) {
+            int end = text.indexOf('\t', offset);
+            if (end < 0) {
+                end = length;
+            }
+            if (slots[column] >= 0) {
+                counts.increment(slots[column], classify(text, offset, end, genotypeField));
+            }
+            column++;
+            offset = end + 1;
+        }
+    }
+
+    /**
+     * Return the genotype text of a record that the codec has not decoded, or null
+     *
+     * @param vc
+     * @return
+     */
+    public static String getUnparsedGenotypes(VariantContext vc) {
+        GenotypesContext genotypes = vc.getGenotypes();
+        Object unparsed = genotypes instanceof LazyGenotypesContext
+                ? ((LazyGenotypesContext) genotypes).getUnparsedGenotypeData()
+                : null;
+        return unparsed instanceof String ? (String) unparsed : null;
+    }
+
+    /**
+     * Return the position of GT among the FORMAT fields at the start of the genotype text, or -1 if there is no GT
+     *
+     * @param text
+     * @return
+     */
+    public static int findGenotypeField(String text) {
+        int end = text.indexOf('\t');
+        if (end < 0) {
+            end = text.length();
+        }
+
+        int field = 0;
+        int start = 0;
+        while (start <= end) {
+            int colon = text.indexOf(':', start);
+            int fieldEnd = colon < 0 || colon > end ? end : colon;
+            if (fieldEnd - start == GENOTYPE_KEY.length() && text.startsWith(GENOTYPE_KEY, start)) {
+                return field;
+            }
+            field++;
+            start = fieldEnd + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Return the category of the GT subfield of one sample column
+     *
+     * @param text
+     * @param start where the sample column starts
+     * @param end where the sample column ends
+     * @param genotypeField the position of GT among the FORMAT fields
+     * @return
+     */
+    private static int classify(String text, int start, int end, int genotypeField) {
+        for (int field = 0; field < genotypeField; field++) {
+            int colon = text.indexOf(':', start);
+            if (colon < 0 || colon >= end) {
+                // Trailing fields may be dropped, so the column has no GT
+                return SampleGenotypeCounts.MISSING;
+            }
+            start = colon + 1;
+        }
+
+        int firstAllele = -1;
+        int allele = -1;
+        boolean missing = false;
+        boolean sameAlleles = true;
+        boolean allReference = true;
+        for (int i = start; i <= end; i++) {
+            char c = i < end ? text.charAt(i) : ':';
+            if (c >= '0' && c <= '9') {
+                allele = (allele < 0 ? 0 : allele * 10) + (c - '0');
+            } else if (c == '.') {
+                missing = true;
+            } else {
+                // An allele separator (/ or |), or the end of the GT subfield
+                if (allele >= 0) {
+                    if (firstAllele < 0) {
+                        firstAllele = allele;
+                    } else if (allele != firstAllele) {
+                        sameAlleles = false;
+                    }
+                    allReference &= allele == 0;
+                }
+                allele = -1;
+                if (c == ':') {
+                    break;
+                }
+            }
+        }
+
+        if (missing || firstAllele < 0) {
+            return SampleGenotypeCounts.MISSING;
+        } else if (allReference) {
+            return SampleGenotypeCounts.HOM_REF;
+        }
+        return sameAlleles ? SampleGenotypeCounts.HOM_ALT : SampleGenotypeCounts.HET;
+    }
+
+    private static int classify(Genotype genotype) {
+        switch (genotype.getType()) {
+        case HOM_REF:
+            return SampleGenotypeCounts.HOM_REF;
+        case HET:
+            return SampleGenotypeCounts.HET;
+        case HOM_VAR:
+            return SampleGenotypeCounts.HOM_ALT;
+        default:
+            return SampleGenotypeCounts.MISSING;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The number of hom ref, het, hom alt and missing genotypes of each selected sample, in one primitive array. Counts
+ * with the same samples can be merged, and written to and read back from a snapshot. Not thread safe.
+ *
+ * @author j
+ *
+ */
+public class SampleGenotypeCounts {
+    public static final int HOM_REF = 0;
+    public static final int HET = 1;
+    public static final int HOM_ALT = 2;
+    public static final int MISSING = 3;
+    public static final int NUMBER_OF_CATEGORIES = 4;
+
+    // At sample * NUMBER_OF_CATEGORIES + category
+    private final long[] counts;
+
+    /**
+     * Constructor
+     *
+     * @param numberOfSamples
+     */
+    public SampleGenotypeCounts(int numberOfSamples) {
+        counts = new long[numberOfSamples * NUMBER_OF_CATEGORIES];
+    }
+
+    public void increment(int sample, int category) {
+        counts[sample * NUMBER_OF_CATEGORIES + category]++;
+    }
+
+    public long getCount(int sample, int category) {
+        return counts[sample * NUMBER_OF_CATEGORIES + category];
+    }
+
+    public int getNumberOfSamples() {
+        return counts.length / NUMBER_OF_CATEGORIES;
+    }
+
+    /**
+     * Add another set of counts to this one's. They must be for the same samples.
+     *
+     * @param other
+     */
+    public void merge(SampleGenotypeCounts other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+    }
+
+    /**
+     * Write the counts to a snapshot
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(counts.length);
+        for (long count : counts) {
+            out.writeLong(count);
+        }
+    }
+
+    /**
+     * Add counts written by write() to this one's. They must be for the same samples.
+     *
+     * @param in
+     * @throws IOException
+     */
+    public void read(DataInputStream in) throws IOException {
+        if (in.readInt() != counts.length) {
+            throw new IOException("Genotype counts are for a different number of samples");
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += in.readLong();
+        }
+    }
+}
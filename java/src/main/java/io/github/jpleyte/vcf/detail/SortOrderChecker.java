@@ -0,0 +1,255 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Checks whether a VCF is sorted while its records are analysed in parallel. Each task checks its own chunk of the file
+ * and keeps the runs of records on one contig, with the first and last position of each run and the first place
+ * where positions go backwards. As chunks finish, their runs are stitched on in file order, so the boundaries between
+ * chunks are checked as well. A chunk that finishes before the chunks ahead of it waits for them; once stitched, it is
+ * dropped.
+ *
+ * A sorted file has each contig in one run, with positions that do not decrease. The contigs are in dictionary order if
+ * each contig comes after the one before it in the header's sequence dictionary.
+ *
+ * @author j
+ *
+ */
+public class SortOrderChecker {
+    private final ContigIndex contigIndex;
+
+    // Chunks are numbered in file order as they are created, and stitched in that order
+    private long numberOfChunks;
+    private long nextChunkToStitch;
+    private final Map<Long, Chunk> waitingChunks = new TreeMap<>();
+
+    // Where the stitched chunks got to: the contigs they finished with, and the last run's contig and position
+    private final BitSet stitchedContigs = new BitSet();
+    private int currentContig = -1;
+    private int lastPosition = 0;
+
+    private boolean sorted = true;
+    private String firstOutOfOrderRecord;
+    private boolean dictionaryOrder = true;
+    private String firstOutOfDictionaryOrderContig;
+
+    /**
+     * Constructor
+     *
+     * @param contigIndex
+     */
+    public SortOrderChecker(ContigIndex contigIndex) {
+        this.contigIndex = contigIndex;
+    }
+
+    /**
+     * Create the checker of the next chunk of the file. Chunks must be created in file order.
+     *
+     * @param firstOrdinal position in the file of the chunk's first record, counting from zero, or -1 if it is not known
+     * @return
+     */
+    public synchronized Chunk createChunk(long firstOrdinal) {
+        return new Chunk(numberOfChunks++, firstOrdinal);
+    }
+
+    /**
+     * Stitch the chunks still waiting for a chunk ahead of them, which only happens if a chunk was never finished. Call
+     * this once every task is done.
+     */
+    public synchronized void stitch() {
+        for (Chunk chunk : waitingChunks.values()) {
+            stitch(chunk);
+        }
+        waitingChunks.clear();
+    }
+
+    /**
+     * Stitch a finished chunk, and the chunks after it that were waiting for it, onto the chunks before it
+     *
+     * @param chunk
+     */
+    private synchronized void finish(Chunk chunk) {
+        waitingChunks.put(chunk.sequence, chunk);
+        Chunk next;
+        while ((next = waitingChunks.remove(nextChunkToStitch)) != null) {
+            stitch(next);
+            nextChunkToStitch++;
+        }
+    }
+
+    private void stitch(Chunk chunk) {
+        for (int run = 0; run < chunk.numberOfRuns && sorted; run++) {
+            int contig = chunk.runContigs[run];
+            int firstPosition = chunk.runFirstPositions[run];
+            if (contig == currentContig && firstPosition < lastPosition) {
+                setFirstOutOfOrderRecord(chunk, chunk.runFirstRecords[run], contig, firstPosition, currentContig,
+                        lastPosition);
+            } else if (contig != currentContig) {
+                if (stitchedContigs.get(contig)) {
+                    setFirstOutOfOrderRecord(chunk, chunk.runFirstRecords[run], contig, firstPosition, currentContig,
+                            lastPosition);
+                }
+                if (currentContig >= 0) {
+                    stitchedContigs.set(currentContig);
+                }
+                checkDictionaryOrder(currentContig, contig);
+            }
+
+            if (sorted && run == chunk.decreasingRun) {
+                setFirstOutOfOrderRecord(chunk, chunk.decreasingRecord, contig, chunk.decreasingPosition, contig,
+                        chunk.runLastPositions[run]);
+            }
+            currentContig = contig;
+            lastPosition = chunk.runLastPositions[run];
+        }
+    }
+
+    /**
+     * Return true if every contig is in one run of records with positions that do not decrease
+     *
+     * @return
+     */
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    /**
+     * Return a description of the first out of order record and the record before it, or null if the file is sorted
+     *
+     * @return
+     */
+    public String describeFirstOutOfOrderRecord() {
+        return firstOutOfOrderRecord;
+    }
+
+    /**
+     * Return true if the contigs follow the order of the header's sequence dictionary. Only meaningful for a sorted
+     * file.
+     *
+     * @return
+     */
+    public boolean isInDictionaryOrder() {
+        return dictionaryOrder;
+    }
+
+    /**
+     * Return a description of the first contig that breaks dictionary order, or null if there isn't one
+     *
+     * @return
+     */
+    public String describeFirstOutOfDictionaryOrderContig() {
+        return firstOutOfDictionaryOrderContig;
+    }
+
+    /**
+     * Note if a contig breaks dictionary order
+     *
+     * @param previousContig the contig before it, or -1 if it is the first
+     * @param contig
+     */
+    private void checkDictionaryOrder(int previousContig, int contig) {
+        if (!dictionaryOrder) {
+            return;
+        }
+        if (contig >= contigIndex.getNumberOfDeclaredContigs()) {
+            dictionaryOrder = false;
+            firstOutOfDictionaryOrderContig = contigIndex.getName(contig) + " is not in the header";
+        } else if (contig < previousContig) {
+            dictionaryOrder = false;
+            firstOutOfDictionaryOrderContig = contigIndex.getName(contig) + " follows "
+                    + contigIndex.getName(previousContig);
+        }
+    }
+
+    private void setFirstOutOfOrderRecord(Chunk chunk, long record, int contig, int position, int precedingContig,
+            int precedingPosition) {
+        sorted = false;
+        firstOutOfOrderRecord = contigIndex.getName(contig) + ":" + position
+                + (chunk.firstOrdinal < 0 ? "" : " (record " + (chunk.firstOrdinal + record + 1) + ")") + " follows "
+                + contigIndex.getName(precedingContig) + ":" + precedingPosition;
+    }
+
+    /**
+     * The runs of one chunk of the file. A chunk is checked by the one task that reads it, so it is not thread safe.
+     * Nothing after the first place the chunk is out of order is kept, as the file is already known to be unsorted.
+     */
+    public class Chunk {
+        private final long sequence;
+        private final long firstOrdinal;
+        private final BitSet finishedContigs = new BitSet();
+        private long numberOfRecords;
+        private boolean stopped;
+
+        // Runs of records on one contig, in file order
+        private int numberOfRuns;
+        private int[] runContigs = new int[4];
+        private int[] runFirstPositions = new int[4];
+        private int[] runLastPositions = new int[4];
+        private long[] runFirstRecords = new long[4];
+
+        // The first record in a run whose position is less than the one before it
+        private int decreasingRun = -1;
+        private long decreasingRecord;
+        private int decreasingPosition;
+
+        private Chunk(long sequence, long firstOrdinal) {
+            this.sequence = sequence;
+            this.firstOrdinal = firstOrdinal;
+        }
+
+        /**
+         * Check the next record of the chunk
+         *
+         * @param contig the contig's index
+         * @param position
+         */
+        public void add(int contig, int position) {
+            long record = numberOfRecords++;
+            if (stopped) {
+                return;
+            }
+
+            int run = numberOfRuns - 1;
+            if (run < 0 || contig != runContigs[run]) {
+                if (run >= 0) {
+                    finishedContigs.set(runContigs[run]);
+                }
+                // A contig seen again in the same chunk; stitching finds it from the run
+                stopped = finishedContigs.get(contig);
+                addRun(contig, position, record);
+            } else if (position < runLastPositions[run]) {
+                decreasingRun = run;
+                decreasingRecord = record;
+                decreasingPosition = position;
+                stopped = true;
+            } else {
+                runLastPositions[run] = position;
+            }
+        }
+
+        /**
+         * Hand the chunk back to be stitched once every record has been added
+         */
+        public void finish() {
+            SortOrderChecker.this.finish(this);
+        }
+
+        private void addRun(int contig, int position, long record) {
+            if (numberOfRuns == runContigs.length) {
+                int length = numberOfRuns * 2;
+                runContigs = Arrays.copyOf(runContigs, length);
+                runFirstPositions = Arrays.copyOf(runFirstPositions, length);
+                runLastPositions = Arrays.copyOf(runLastPositions, length);
+                runFirstRecords = Arrays.copyOf(runFirstRecords, length);
+            }
+            runContigs[numberOfRuns] = contig;
+            runFirstPositions[numberOfRuns] = position;
+            runLastPositions[numberOfRuns] = position;
+            runFirstRecords[numberOfRuns] = record;
+            numberOfRuns++;
+        }
+    }
+}
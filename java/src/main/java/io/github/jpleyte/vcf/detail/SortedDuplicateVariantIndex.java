@@ -0,0 +1,156 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import io.github.jpleyte.log.BootstrapLogger;
+
+/**
+ * Duplicate variant index for coordinate sorted VCFs. Duplicates of a variant can only be at the same contig and
+ * position, so only the keys at the current position are kept and memory use does not grow with the file.
+ *
+ * The index checks the order as it goes: positions must increase within a contig and a contig must not appear again
+ * once another contig has started. At the first out of order record the index switches to a global index for the rest
+ * of the file. Duplicates of records that came before the out of order record can then be missed, which is reported by
+ * isSorted().
+ *
+ * Variants must be added from one thread, in file order.
+ *
+ * @author j
+ *
+ */
+public class SortedDuplicateVariantIndex implements DuplicateVariantIndex {
+    private static final Logger log = BootstrapLogger.configureLogger(SortedDuplicateVariantIndex.class.getName());
+
+    private final Supplier<DuplicateVariantIndex> fallbackFactory;
+    private DuplicateVariantIndex fallback;
+
+    private final BitSet finishedContigs = new BitSet();
+    private long currentLocus;
+
+    // The keys at the current locus. Allele text is only kept for hashed keys.
+    private long[] highs = new long[4];
+    private long[] lows = new long[4];
+    private String[] alleleTexts = new String[4];
+    private int count;
+
+    private long precedingLocus;
+    private VariantKey firstOutOfOrderKey;
+
+    /**
+     * Constructor
+     *
+     * @param fallbackFactory creates the index used if the input turns out not to be sorted
+     */
+    public SortedDuplicateVariantIndex(Supplier<DuplicateVariantIndex> fallbackFactory) {
+        this.fallbackFactory = fallbackFactory;
+    }
+
+    @Override
+    public boolean add(VariantKey key) {
+        if (fallback != null) {
+            return fallback.add(key);
+        }
+
+        long locus = key.getLocus();
+        if (locus != currentLocus) {
+            if (!isAfterCurrentLocus(key)) {
+                switchToFallback(key);
+                return fallback.add(key);
+            }
+
+            if (currentLocus != 0 && key.getContigIndex() != getContigIndex(currentLocus)) {
+                finishedContigs.set(getContigIndex(currentLocus));
+            }
+            currentLocus = locus;
+            count = 0;
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (highs[i] == key.getHigh() && lows[i] == key.getLow()
+                    && (key.isExact() || alleleTexts[i].equals(key.getAlleleText()))) {
+                return false;
+            }
+        }
+
+        if (count == highs.length) {
+            highs = Arrays.copyOf(highs, count * 2);
+            lows = Arrays.copyOf(lows, count * 2);
+            alleleTexts = Arrays.copyOf(alleleTexts, count * 2);
+        }
+        highs[count] = key.getHigh();
+        lows[count] = key.getLow();
+        alleleTexts[count] = key.isExact() ? null : key.getAlleleText();
+        count++;
+
+        return true;
+    }
+
+    @Override
+    public boolean requiresOrderedInput() {
+        return true;
+    }
+
+    /**
+     * Return true if no out of order record has been seen
+     *
+     * @return
+     */
+    public boolean isSorted() {
+        return firstOutOfOrderKey == null;
+    }
+
+    /**
+     * Return a description of the first out of order record, or null if the input is sorted
+     *
+     * @param contigIndex
+     * @return
+     */
+    public String describeFirstOutOfOrderRecord(ContigIndex contigIndex) {
+        if (firstOutOfOrderKey == null) {
+            return null;
+        }
+        return contigIndex.getName(firstOutOfOrderKey.getContigIndex()) + ":" + firstOutOfOrderKey.getPosition()
+                + " follows " + contigIndex.getName(getContigIndex(precedingLocus)) + ":" + (int) precedingLocus;
+    }
+
+    private boolean isAfterCurrentLocus(VariantKey key) {
+        if (currentLocus == 0) {
+            return true;
+        }
+
+        int contig = key.getContigIndex();
+        if (contig == getContigIndex(currentLocus)) {
+            return key.getPosition() > (int) currentLocus;
+        }
+        return !finishedContigs.get(contig);
+    }
+
+    /**
+     * Move the keys at the current locus into a global index, which is used from now on
+     *
+     * @param outOfOrderKey
+     */
+    private void switchToFallback(VariantKey outOfOrderKey) {
+        precedingLocus = currentLocus;
+        firstOutOfOrderKey = outOfOrderKey.copy();
+        log.warning("Input is not sorted; switching to a global duplicate index");
+
+        fallback = fallbackFactory.get();
+        VariantKey key = new VariantKey();
+        for (int i = 0; i < count; i++) {
+            key.set(currentLocus, highs[i], lows[i]);
+            key.setAlleleText(alleleTexts[i]);
+            fallback.add(key);
+        }
+        highs = null;
+        lows = null;
+        alleleTexts = null;
+    }
+
+    private static int getContigIndex(long locus) {
+        return (int) (locus >>> 32) - 1;
+    }
+}
@@ -0,0 +1,105 @@
+package io.github.jpleyte.vcf.detail;
+
+/**
+ * Duplicate variant index made of many small open addressing hash tables (stripes), each with its own lock. A variant's
+ * hash picks the stripe, so threads adding different variants rarely wait for each other. Keys are stored as three
+ * longs in a primitive array, so there are no per-entry objects.
+ *
+ * Keys whose alleles are hashed rather than packed exactly are kept apart with their allele text, which confirms that
+ * equal hashes are the same variant. The text is kept as bytes in large buffers rather than as a String per key.
+ *
+ * @author j
+ *
+ */
+public class StripedDuplicateVariantIndex implements DuplicateVariantIndex {
+    private static final int STRIPES_PER_THREAD = 16;
+    private static final int MIN_STRIPES = 64;
+    private static final int INITIAL_STRIPE_CAPACITY = 256;
+
+    private final Stripe[] stripes;
+    private final int stripeShift;
+
+    /**
+     * Constructor
+     *
+     * @param numberOfThreads the number of threads that will add variants at the same time
+     */
+    public StripedDuplicateVariantIndex(int numberOfThreads) {
+        int numberOfStripes = Integer.highestOneBit(Math.max(MIN_STRIPES, numberOfThreads * STRIPES_PER_THREAD) - 1) << 1;
+        stripeShift = Integer.SIZE - Integer.numberOfTrailingZeros(numberOfStripes);
+
+        stripes = new Stripe[numberOfStripes];
+        for (int i = 0; i < numberOfStripes; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    @Override
+    public boolean add(VariantKey key) {
+        int hash = key.hashCode();
+
+        // The high bits of the hash pick the stripe and the low bits pick the slot within the stripe
+        Stripe stripe = stripes[hash >>> stripeShift];
+        synchronized (stripe) {
+            if (key.isExact()) {
+                return stripe.add(key.getLocus(), key.getHigh(), key.getLow(), hash);
+            }
+            return stripe.addHashed(key);
+        }
+    }
+
+    /**
+     * A linear probing hash table of keys. Callers must hold the stripe's lock.
+     */
+    private static class Stripe {
+        private long[] slots = new long[INITIAL_STRIPE_CAPACITY * 3];
+        private int size;
+
+        // Hashed keys and their allele text; only created if the stripe holds a hashed key
+        private HashedAlleleTexts alleleTexts;
+
+        boolean add(long locus, long high, long low, int hash) {
+            int capacity = slots.length / 3;
+            int slot = hash & (capacity - 1);
+            long existing;
+            while ((existing = slots[slot * 3]) != 0) {
+                if (existing == locus && slots[slot * 3 + 1] == high && slots[slot * 3 + 2] == low) {
+                    return false;
+                }
+                slot = (slot + 1) & (capacity - 1);
+            }
+
+            slots[slot * 3] = locus;
+            slots[slot * 3 + 1] = high;
+            slots[slot * 3 + 2] = low;
+            if (++size > capacity / 2) {
+                resize();
+            }
+            return true;
+        }
+
+        boolean addHashed(VariantKey key) {
+            if (alleleTexts == null) {
+                alleleTexts = new HashedAlleleTexts(BufferAllocator.HEAP);
+            }
+            return alleleTexts.add(key);
+        }
+
+        private void resize() {
+            long[] old = slots;
+            slots = new long[old.length * 2];
+            int capacity = slots.length / 3;
+            for (int i = 0; i < old.length; i += 3) {
+                if (old[i] != 0) {
+                    int slot = VariantKey.hash(old[i], old[i + 1], old[i + 2]) & (capacity - 1);
+                    while (slots[slot * 3] != 0) {
+                        slot = (slot + 1) & (capacity - 1);
+                    }
+                    slots[slot * 3] = old[i];
+                    slots[slot * 3 + 1] = old[i + 1];
+                    slots[slot * 3 + 2] = old[i + 2];
+                }
+            }
+        }
+    }
+}
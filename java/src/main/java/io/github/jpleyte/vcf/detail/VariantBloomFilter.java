@@ -0,0 +1,91 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of variant keys. It can say a key was added before when it was not (a false positive) but never the
+ * other way round. Bits are set with atomic operations so threads can add keys at the same time.
+ *
+ * Checking a key and adding it are done under a lock chosen by the key's hash, so two threads adding the same key
+ * cannot both see it as new.
+ *
+ * @author j
+ *
+ */
+public class VariantBloomFilter {
+    private static final int NUMBER_OF_LOCKS = 256;
+
+    private final AtomicLongArray words;
+    private final long numberOfBits;
+    private final int numberOfHashes;
+    private final Object[] locks = new Object[NUMBER_OF_LOCKS];
+
+    /**
+     * Constructor
+     *
+     * @param expectedKeys the number of distinct keys the filter is sized for
+     * @param falsePositiveRate the chance of a false positive once the expected number of keys has been added
+     */
+    public VariantBloomFilter(long expectedKeys, double falsePositiveRate) {
+        double ln2 = Math.log(2);
+        long bits = (long) Math.ceil(-Math.max(1, expectedKeys) * Math.log(falsePositiveRate) / (ln2 * ln2));
+        int numberOfWords = (int) Math.min(Integer.MAX_VALUE - 8, (bits + 63) / 64);
+
+        words = new AtomicLongArray(numberOfWords);
+        numberOfBits = numberOfWords * 64L;
+        numberOfHashes = Math.max(1, (int) Math.round((double) numberOfBits / Math.max(1, expectedKeys) * ln2));
+        for (int i = 0; i < NUMBER_OF_LOCKS; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Add a key
+     *
+     * @param key
+     * @return true if the key may have been added before, or false if it definitely was not
+     */
+    public boolean add(VariantKey key) {
+        // Double hashing: bit i is h1 + i * h2
+        long h1 = mix(key.getLocus() * 0x9E3779B97F4A7C15L ^ key.getHigh());
+        long h2 = mix(h1 ^ key.getLow()) | 1;
+
+        synchronized (locks[key.hashCode() & (NUMBER_OF_LOCKS - 1)]) {
+            boolean present = true;
+            long h = h1;
+            for (int i = 0; i < numberOfHashes; i++) {
+                long bit = Long.remainderUnsigned(h, numberOfBits);
+                long mask = 1L << bit;
+                long previous = words.getAndAccumulate((int) (bit >>> 6), mask, (a, b) -> a | b);
+                if ((previous & mask) == 0) {
+                    present = false;
+                }
+                h += h2;
+            }
+            return present;
+        }
+    }
+
+    public long getNumberOfBits() {
+        return numberOfBits;
+    }
+
+    public int getNumberOfHashes() {
+        return numberOfHashes;
+    }
+
+    /**
+     * MurmurHash3 64 bit finaliser
+     *
+     * @param h
+     * @return
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,487 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import io.github.jpleyte.log.BootstrapLogger;
+
+/**
+ * The variants of earlier VCFs, kept on disk so each new VCF can be checked against them in one pass. The history is a
+ * directory of segment files, each a sorted array of 24 byte keys that is memory mapped and binary searched. Every key
+ * in every 1024th position is kept on the heap so a search touches few pages of the file.
+ *
+ * A run opened for writing collects the keys that are not in the history. Each thread's keys are sorted and written to
+ * a temporary run file whenever a million have been collected, and when the history is closed the runs are merged into
+ * a new segment. When there are too many segments they are merged into one (compaction). The manifest (history.properties)
+ * lists the segments, the key type and the contigs; the history has its own contig numbering so VCFs with different
+ * sequence dictionaries can share it. Segments hold keys only, so hashed keys are matched by their 127 bit hash.
+ *
+ * contains() and append() can be called from any thread.
+ *
+ * @author j
+ *
+ */
+public class VariantHistory {
+    private static final Logger log = BootstrapLogger.configureLogger(VariantHistory.class.getName());
+
+    private static final String MANIFEST = "history.properties";
+    private static final String FORMAT_VERSION = "1";
+    private static final int ENTRY_BYTES = 24;
+    private static final int FENCE_INTERVAL = 1024;
+    // Entries per mapped chunk; a multiple of the entry size so no entry straddles two chunks
+    private static final int CHUNK_ENTRY_BITS = 26;
+    private static final int MAX_SEGMENTS = 8;
+    // Keys a thread collects before they are written as a run; 24 MB
+    private static final int RUN_KEYS = 1 << 20;
+
+    private final File directory;
+    private final boolean writable;
+    private final String keyType;
+    private final ContigIndex runContigs;
+
+    private final List<String> contigNames = new ArrayList<>();
+    private final Map<String, Integer> contigIds = new HashMap<>();
+    // History contig id of each contig index of this run, or -1 if not looked up yet and -2 if the history lacks it
+    private volatile int[] runToHistoryContig = new int[0];
+
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<String> segmentNames = new ArrayList<>();
+    private int nextSegment;
+
+    private final VariantKeyCollector appendedKeys = new VariantKeyCollector(RUN_KEYS, this::writeRun);
+    private final List<File> runFiles = new ArrayList<>();
+    private final AtomicInteger nextRun = new AtomicInteger();
+
+    /**
+     * Open a history, creating it if it does not exist and it is opened for writing
+     *
+     * @param directory
+     * @param writable
+     * @param keyType what the keys were made from, such as the uniqueBy option; a history only holds one type
+     * @param runContigs the contigs of this run
+     */
+    public VariantHistory(File directory, boolean writable, String keyType, ContigIndex runContigs) {
+        this.directory = directory;
+        this.writable = writable;
+        this.keyType = keyType;
+        this.runContigs = runContigs;
+
+        File manifest = new File(directory, MANIFEST);
+        if (!manifest.exists()) {
+            if (!writable) {
+                fail("No variant history in " + directory, null);
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                fail("Unable to create " + directory, null);
+            }
+            log.info("Starting a new variant history in " + directory);
+            return;
+        }
+
+        readManifest(manifest);
+        long numberOfKeys = 0;
+        for (String name : segmentNames) {
+            Segment segment = new Segment(new File(directory, name));
+            segments.add(segment);
+            numberOfKeys += segment.size;
+        }
+        log.info("Opened variant history of " + numberOfKeys + " keys in " + segments.size() + " segments");
+    }
+
+    /**
+     * Return true if a key is in the history
+     *
+     * @param key
+     * @return
+     */
+    public boolean contains(VariantKey key) {
+        long locus = toHistoryLocus(key, false);
+        if (locus == 0) {
+            return false;
+        }
+        for (Segment segment : segments) {
+            if (segment.contains(locus, key.getHigh(), key.getLow())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add a key to the segment written when the history is closed. Keys added more than once are written once.
+     *
+     * @param key
+     */
+    public void append(VariantKey key) {
+        appendedKeys.add(toHistoryLocus(key, true), key.getHigh(), key.getLow());
+    }
+
+    /**
+     * Write the appended keys as a new segment, compact the history if it has too many segments, and save the manifest.
+     * Only call this once every key has been added and the threads that added them have finished.
+     *
+     * @param compact merge every segment into one even if there are only a few
+     * @return the number of keys added to the history
+     */
+    public long close(boolean compact) {
+        if (!writable) {
+            return 0;
+        }
+
+        appendedKeys.flush();
+        long numberOfKeys = 0;
+        if (!runFiles.isEmpty()) {
+            String name = newSegmentName();
+            File file = new File(directory, name);
+            List<Segment> runs = new ArrayList<>();
+            for (File runFile : runFiles) {
+                runs.add(new Segment(runFile));
+            }
+            numberOfKeys = merge(runs, file);
+            for (File runFile : runFiles) {
+                if (!runFile.delete()) {
+                    log.warning("Unable to delete " + runFile);
+                }
+            }
+            runFiles.clear();
+            segmentNames.add(name);
+            segments.add(new Segment(file));
+        }
+
+        if (compact || segments.size() > MAX_SEGMENTS) {
+            compact();
+        }
+        writeManifest();
+        return numberOfKeys;
+    }
+
+    /**
+     * Merge every segment into one, dropping keys that are in more than one segment
+     */
+    private void compact() {
+        if (segments.size() < 2) {
+            return;
+        }
+
+        String name = newSegmentName();
+        File file = new File(directory, name);
+        long written = merge(segments, file);
+
+        // The old segments are deleted once the manifest no longer lists them
+        List<String> oldNames = new ArrayList<>(segmentNames);
+        segments.clear();
+        segmentNames.clear();
+        segmentNames.add(name);
+        segments.add(new Segment(file));
+        writeManifest();
+        for (String oldName : oldNames) {
+            if (!new File(directory, oldName).delete()) {
+                log.warning("Unable to delete " + oldName + " from " + directory);
+            }
+        }
+        log.info("Compacted variant history into one segment of " + written + " keys");
+    }
+
+    /**
+     * Merge sorted segments into a new segment file, dropping keys that are in more than one segment
+     *
+     * @param inputs
+     * @param file
+     * @return the number of keys written
+     */
+    private static long merge(List<Segment> inputs, File file) {
+        long written = 0;
+        try (DataOutputStream out = openSegment(file)) {
+            PriorityQueue<SegmentCursor> queue = new PriorityQueue<>();
+            for (Segment segment : inputs) {
+                SegmentCursor cursor = new SegmentCursor(segment);
+                if (cursor.next()) {
+                    queue.add(cursor);
+                }
+            }
+
+            long lastLocus = 0;
+            long lastHigh = 0;
+            long lastLow = 0;
+            SegmentCursor cursor;
+            while ((cursor = queue.poll()) != null) {
+                if (written == 0 || cursor.locus != lastLocus || cursor.high != lastHigh || cursor.low != lastLow) {
+                    out.writeLong(cursor.locus);
+                    out.writeLong(cursor.high);
+                    out.writeLong(cursor.low);
+                    lastLocus = cursor.locus;
+                    lastHigh = cursor.high;
+                    lastLow = cursor.low;
+                    written++;
+                }
+                if (cursor.next()) {
+                    queue.add(cursor);
+                }
+            }
+        } catch (IOException e) {
+            fail("Unable to write " + file, e);
+        }
+        return written;
+    }
+
+    /**
+     * Write a sorted run of appended keys to a temporary file, merged into a segment when the history is closed
+     *
+     * @param keys
+     * @param numberOfKeys
+     */
+    private void writeRun(long[] keys, int numberOfKeys) {
+        File file = new File(directory, String.format("run-%06d.tmp", nextRun.getAndIncrement()));
+        file.deleteOnExit();
+        try (DataOutputStream out = openSegment(file)) {
+            for (int i = 0; i < numberOfKeys * 3; i++) {
+                out.writeLong(keys[i]);
+            }
+        } catch (IOException e) {
+            fail("Unable to write " + file, e);
+        }
+        synchronized (runFiles) {
+            runFiles.add(file);
+        }
+    }
+
+    /**
+     * Return the locus of a key in the history's contig numbering, or 0 if the history does not have the contig and
+     * it is not being added
+     *
+     * @param key
+     * @param add add the contig to the history if it is new
+     * @return
+     */
+    private long toHistoryLocus(VariantKey key, boolean add) {
+        int contig = key.getContigIndex();
+        if (contig < 0) {
+            // Keys that are not tied to a contig, such as ID keys
+            return key.getLocus();
+        }
+
+        int[] map = runToHistoryContig;
+        int historyContig = contig < map.length ? map[contig] : -1;
+        if (historyContig == -1 || (historyContig == -2 && add)) {
+            historyContig = lookUpContig(contig, add);
+        }
+        return historyContig < 0 ? 0 : VariantKey.toLocus(historyContig, key.getPosition());
+    }
+
+    private synchronized int lookUpContig(int contig, boolean add) {
+        String name = runContigs.getName(contig);
+        Integer id = contigIds.get(name);
+        if (id == null && add) {
+            id = contigNames.size();
+            contigNames.add(name);
+            contigIds.put(name, id);
+        }
+
+        int[] map = runToHistoryContig;
+        if (contig >= map.length) {
+            int oldLength = map.length;
+            map = Arrays.copyOf(map, Math.max(contig + 1, oldLength * 2));
+            Arrays.fill(map, oldLength, map.length, -1);
+        } else {
+            map = map.clone();
+        }
+        map[contig] = id == null ? -2 : id;
+        runToHistoryContig = map;
+        return map[contig];
+    }
+
+    private void readManifest(File manifest) {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(manifest)) {
+            properties.load(in);
+        } catch (IOException e) {
+            fail("Unable to read " + manifest, e);
+        }
+
+        if (!FORMAT_VERSION.equals(properties.getProperty("format"))) {
+            fail("Unsupported variant history format in " + directory, null);
+        }
+        if (!keyType.equals(properties.getProperty("keyType"))) {
+            fail("The variant history in " + directory + " holds " + properties.getProperty("keyType")
+                    + " keys, not " + keyType, null);
+        }
+
+        int numberOfContigs = Integer.parseInt(properties.getProperty("contigs", "0"));
+        for (int i = 0; i < numberOfContigs; i++) {
+            String name = properties.getProperty("contig." + i);
+            contigNames.add(name);
+            contigIds.put(name, i);
+        }
+
+        String names = properties.getProperty("segments", "");
+        if (!names.isEmpty()) {
+            segmentNames.addAll(Arrays.asList(names.split(",")));
+        }
+        nextSegment = Integer.parseInt(properties.getProperty("nextSegment", "0"));
+    }
+
+    /**
+     * Replace the manifest in one step, so a crash leaves either the old or the new history
+     */
+    private void writeManifest() {
+        Properties properties = new Properties();
+        properties.setProperty("format", FORMAT_VERSION);
+        properties.setProperty("keyType", keyType);
+        properties.setProperty("contigs", Integer.toString(contigNames.size()));
+        for (int i = 0; i < contigNames.size(); i++) {
+            properties.setProperty("contig." + i, contigNames.get(i));
+        }
+        properties.setProperty("segments", String.join(",", segmentNames));
+        properties.setProperty("nextSegment", Integer.toString(nextSegment));
+
+        File temp = new File(directory, MANIFEST + ".tmp");
+        try {
+            try (OutputStream out = new FileOutputStream(temp)) {
+                properties.store(out, "VcfDetails variant history");
+            }
+            Files.move(temp.toPath(), new File(directory, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            fail("Unable to write the manifest of " + directory, e);
+        }
+    }
+
+    private String newSegmentName() {
+        return String.format("segment-%06d.keys", nextSegment++);
+    }
+
+    private static DataOutputStream openSegment(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    }
+
+    private static int compare(long locus1, long high1, long low1, long locus2, long high2, long low2) {
+        return VariantKeyCollector.compare(locus1, high1, low1, locus2, high2, low2);
+    }
+
+    private static void fail(String message, IOException e) {
+        log.severe(e == null ? message : message + ": " + e.getMessage());
+        System.exit(1);
+    }
+
+    /**
+     * A mapped, sorted segment file with every FENCE_INTERVAL-th key on the heap
+     */
+    private static class Segment {
+        private final MappedByteBuffer[] chunks;
+        private final long size;
+        private final long[] fences;
+
+        Segment(File file) {
+            size = file.length() / ENTRY_BYTES;
+            long chunkBytes = (long) ENTRY_BYTES << CHUNK_ENTRY_BITS;
+            MappedByteBuffer[] mapped = null;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+                long length = size * ENTRY_BYTES;
+                mapped = new MappedByteBuffer[(int) ((length + chunkBytes - 1) / chunkBytes)];
+                for (int i = 0; i < mapped.length; i++) {
+                    long start = i * chunkBytes;
+                    mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunkBytes, length - start));
+                }
+            } catch (IOException e) {
+                fail("Unable to map " + file, e);
+            }
+            chunks = mapped;
+
+            int numberOfFences = (int) ((size + FENCE_INTERVAL - 1) / FENCE_INTERVAL);
+            fences = new long[numberOfFences * 3];
+            for (int i = 0; i < numberOfFences; i++) {
+                long entry = (long) i * FENCE_INTERVAL;
+                fences[i * 3] = get(entry, 0);
+                fences[i * 3 + 1] = get(entry, 1);
+                fences[i * 3 + 2] = get(entry, 2);
+            }
+        }
+
+        long get(long entry, int field) {
+            MappedByteBuffer chunk = chunks[(int) (entry >>> CHUNK_ENTRY_BITS)];
+            return chunk.getLong((int) (entry & ((1 << CHUNK_ENTRY_BITS) - 1)) * ENTRY_BYTES + field * 8);
+        }
+
+        boolean contains(long locus, long high, long low) {
+            // Find the last fence at or before the key, then search the entries after it
+            int lowFence = 0;
+            int highFence = fences.length / 3 - 1;
+            if (highFence < 0 || compare(locus, high, low, fences[0], fences[1], fences[2]) < 0) {
+                return false;
+            }
+            while (lowFence < highFence) {
+                int middle = (lowFence + highFence + 1) >>> 1;
+                if (compare(locus, high, low, fences[middle * 3], fences[middle * 3 + 1], fences[middle * 3 + 2]) < 0) {
+                    highFence = middle - 1;
+                } else {
+                    lowFence = middle;
+                }
+            }
+
+            long from = (long) lowFence * FENCE_INTERVAL;
+            long to = Math.min(size, from + FENCE_INTERVAL) - 1;
+            while (from <= to) {
+                long middle = (from + to) >>> 1;
+                int c = compare(locus, high, low, get(middle, 0), get(middle, 1), get(middle, 2));
+                if (c == 0) {
+                    return true;
+                } else if (c < 0) {
+                    to = middle - 1;
+                } else {
+                    from = middle + 1;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Walks a segment in order during compaction
+     */
+    private static class SegmentCursor implements Comparable<SegmentCursor> {
+        private final Segment segment;
+        private long entry = -1;
+        long locus;
+        long high;
+        long low;
+
+        SegmentCursor(Segment segment) {
+            this.segment = segment;
+        }
+
+        boolean next() {
+            if (++entry >= segment.size) {
+                return false;
+            }
+            locus = segment.get(entry, 0);
+            high = segment.get(entry, 1);
+            low = segment.get(entry, 2);
+            return true;
+        }
+
+        @Override
+        public int compareTo(SegmentCursor other) {
+            return compare(locus, high, low, other.locus, other.high, other.low);
+        }
+    }
+}
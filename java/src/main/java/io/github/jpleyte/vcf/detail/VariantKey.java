@@ -0,0 +1,238 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.util.Arrays;
+
+/**
+ * Fixed width identity of a variant: a locus (contig index and position) and 128 bits describing the alleles. When the
+ * alleles are short and made of A, C, G and T they are packed into the 128 bits exactly; otherwise the 128 bits are a
+ * hash of the alleles. The top bit tells the two apart.
+ *
+ * A key is a reusable holder that is filled in by a VariantKeyExtractor. It keeps a reference to the allele bases it was
+ * made from, which are only valid until the holder is filled in again, so that the alleles can be compared exactly
+ * when two hashed keys are equal.
+ *
+ * @author j
+ *
+ */
+public final class VariantKey {
+    static final long EXACT_FLAG = Long.MIN_VALUE;
+
+    // The locus of keys that are not tied to a position, such as ID keys. Its contig index is -1.
+    static final long ID_LOCUS = toLocus(-1, 1);
+
+    private long locus;
+    private long high;
+    private long low;
+
+    private byte[] reference;
+    private byte[][] alternates;
+    private int numberOfAlternates;
+    private String alleleText;
+
+    /**
+     * Return the locus of a contig index and position. The contig index is stored plus one so that a locus is never
+     * zero, which lets hash tables use zero to mark an empty slot.
+     *
+     * @param contigIndex
+     * @param position
+     * @return
+     */
+    public static long toLocus(int contigIndex, int position) {
+        return ((long) (contigIndex + 1) << 32) | (position & 0xffffffffL);
+    }
+
+    /**
+     * Set the key
+     *
+     * @param locus
+     * @param high
+     * @param low
+     */
+    public void set(long locus, long high, long low) {
+        this.locus = locus;
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Keep a reference to the alleles the key was made from
+     *
+     * @param reference
+     * @param alternates
+     * @param numberOfAlternates
+     */
+    void setAlleles(byte[] reference, byte[][] alternates, int numberOfAlternates) {
+        this.reference = reference;
+        this.alternates = alternates;
+        this.numberOfAlternates = numberOfAlternates;
+        this.alleleText = null;
+    }
+
+    /**
+     * Set the allele text of a key that is not made from alleles, such as a key restored from storage
+     *
+     * @param alleleText
+     */
+    void setAlleleText(String alleleText) {
+        this.reference = null;
+        this.alleleText = alleleText;
+    }
+
+    public long getLocus() {
+        return locus;
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    public int getContigIndex() {
+        return (int) (locus >>> 32) - 1;
+    }
+
+    public int getPosition() {
+        return (int) locus;
+    }
+
+    /**
+     * Return true if the alleles are packed into the key exactly, or false if the key holds a hash of the alleles
+     *
+     * @return
+     */
+    public boolean isExact() {
+        return (high & EXACT_FLAG) != 0;
+    }
+
+    /**
+     * Return the alleles as text, with the alternates sorted so the text does not depend on their order in the VCF.
+     * This allocates, so it is only used for hashed keys and for log messages.
+     *
+     * @return
+     */
+    public String getAlleleText() {
+        if (alleleText == null) {
+            if (reference != null) {
+                alleleText = buildAlleleText();
+            } else if (isExact()) {
+                alleleText = locus == ID_LOCUS ? "rs" + low : unpackAlleleText();
+            } else {
+                alleleText = "";
+            }
+        }
+        return alleleText;
+    }
+
+    /**
+     * Return the allele text of an exact key that was not made from alleles, such as a key read back from disk. See
+     * VariantKeyEncoder for the layout.
+     *
+     * @return
+     */
+    private String unpackAlleleText() {
+        int referenceLength = (int) (low >>> 6) & 0x3f;
+        int alternateLength = (int) low & 0x3f;
+        int length = referenceLength + alternateLength;
+        if (referenceLength == 0) {
+            // A key without alleles, such as a position key
+            return "";
+        }
+
+        char[] text = new char[length + 1];
+        for (int i = 0; i < length; i++) {
+            // Base i is 2 bits wide, with the last base just above the lengths
+            int shift = 12 + 2 * (length - 1 - i);
+            long bits = shift < 64 ? (low >>> shift) | (shift == 0 ? 0 : high << (64 - shift)) : high >>> (shift - 64);
+            char base = "ACGT".charAt((int) bits & 3);
+            text[i < referenceLength ? i : i + 1] = base;
+        }
+        text[referenceLength] = '-';
+        return new String(text);
+    }
+
+    private String buildAlleleText() {
+        String[] alts = new String[numberOfAlternates];
+        for (int i = 0; i < numberOfAlternates; i++) {
+            alts[i] = new String(alternates[i]);
+        }
+        Arrays.sort(alts);
+
+        return new String(reference) + "-" + String.join(",", alts);
+    }
+
+    /**
+     * Return a description of the variant for log messages
+     *
+     * @param contigIndex
+     * @return
+     */
+    public String describe(ContigIndex contigIndex) {
+        if (locus == ID_LOCUS) {
+            return getAlleleText();
+        }
+
+        String text = getAlleleText();
+        return contigIndex.getName(getContigIndex()) + "-" + getPosition() + (text.isEmpty() ? "" : "-" + text);
+    }
+
+    /**
+     * Return a copy of the key that can be stored. The copy does not keep the alleles.
+     *
+     * @return
+     */
+    public VariantKey copy() {
+        VariantKey copy = new VariantKey();
+        copy.set(locus, high, low);
+        return copy;
+    }
+
+    /**
+     * Return a well mixed hash of a key
+     *
+     * @param locus
+     * @param high
+     * @param low
+     * @return
+     */
+    public static int hash(long locus, long high, long low) {
+        long h = locus * 0x9E3779B97F4A7C15L;
+        h = (h ^ high) * 0xC2B2AE3D27D4EB4FL;
+        h = (h ^ low) * 0x165667B19E3779F9L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Return a 64 bit hash of a key whose high bits and low bits are both well mixed, so that tables split into
+     * segments can pick the segment and the slot from bits that do not overlap
+     *
+     * @param locus
+     * @param high
+     * @param low
+     * @return
+     */
+    public static long hash64(long locus, long high, long low) {
+        long h = locus * 0x9E3779B97F4A7C15L;
+        h = (h ^ high) * 0xC2B2AE3D27D4EB4FL;
+        h = (h ^ low) * 0x165667B19E3779F9L;
+        // The low bits of a product only depend on the low bits of its inputs, so fold the high bits down
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        return h ^ (h >>> 33);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash(locus, high, low);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof VariantKey)) {
+            return false;
+        }
+        VariantKey other = (VariantKey) obj;
+        return locus == other.locus && high == other.high && low == other.low;
+    }
+}
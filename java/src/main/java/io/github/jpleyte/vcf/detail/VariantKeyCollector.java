@@ -0,0 +1,203 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Collects variant keys from any number of threads as sorted runs. Each thread adds to its own buffer of three longs
+ * per key (locus, high, low), so adding does not lock. When a thread's buffer is full, its keys are sorted, their
+ * repeats removed, and they are handed to a RunConsumer as a run, such as a file for an external merge, and the buffer
+ * starts again. So the number of keys in memory is bounded however many are added.
+ *
+ * @author j
+ *
+ */
+public class VariantKeyCollector {
+    private static final int INITIAL_BUFFER_KEYS = 4096;
+    // The largest buffer whose three longs per key fit in one array
+    private static final int MAX_BUFFER_KEYS = (Integer.MAX_VALUE - 8) / 3;
+
+    private final ThreadLocal<KeyBuffer> buffers = ThreadLocal.withInitial(this::createBuffer);
+    private final List<KeyBuffer> allBuffers = new CopyOnWriteArrayList<>();
+    private final int maxBufferKeys;
+    private final RunConsumer runConsumer;
+
+    /**
+     * Receives a run of keys, three longs per key, sorted and without repeats
+     */
+    public interface RunConsumer {
+        /**
+         * Take a run. The array is reused once this returns.
+         *
+         * @param keys
+         * @param numberOfKeys
+         */
+        void accept(long[] keys, int numberOfKeys);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxBufferKeys the number of keys a thread collects before they are handed over
+     * @param runConsumer called on the adding thread, so it must be thread safe
+     */
+    public VariantKeyCollector(int maxBufferKeys, RunConsumer runConsumer) {
+        if (maxBufferKeys < 1 || maxBufferKeys > MAX_BUFFER_KEYS) {
+            throw new IllegalArgumentException("A key buffer holds from 1 to " + MAX_BUFFER_KEYS + " keys, not "
+                    + maxBufferKeys);
+        }
+        this.maxBufferKeys = maxBufferKeys;
+        this.runConsumer = runConsumer;
+    }
+
+    public void add(VariantKey key) {
+        add(key.getLocus(), key.getHigh(), key.getLow());
+    }
+
+    public void add(long locus, long high, long low) {
+        KeyBuffer buffer = buffers.get();
+        buffer.add(locus, high, low);
+        if (buffer.size == maxBufferKeys) {
+            spill(buffer);
+        }
+    }
+
+    /**
+     * Hand the keys still in the buffers to the run consumer. Only call this once the threads that added keys have
+     * finished.
+     */
+    public void flush() {
+        for (KeyBuffer buffer : allBuffers) {
+            if (buffer.size > 0) {
+                spill(buffer);
+            }
+        }
+    }
+
+    /**
+     * Sort keys stored as three longs each
+     *
+     * @param keys
+     * @param numberOfKeys
+     */
+    public static void sort(long[] keys, int numberOfKeys) {
+        sort(keys, 0, numberOfKeys - 1);
+    }
+
+    /**
+     * Move the first of each run of equal sorted keys to the front of the array
+     *
+     * @param keys
+     * @param numberOfKeys
+     * @return the number of distinct keys
+     */
+    public static int removeRepeats(long[] keys, int numberOfKeys) {
+        int distinct = 0;
+        for (int i = 0; i < numberOfKeys; i++) {
+            if (distinct == 0 || compare(keys, i, keys, distinct - 1) != 0) {
+                keys[distinct * 3] = keys[i * 3];
+                keys[distinct * 3 + 1] = keys[i * 3 + 1];
+                keys[distinct * 3 + 2] = keys[i * 3 + 2];
+                distinct++;
+            }
+        }
+        return distinct;
+    }
+
+    /**
+     * Compare two keys by locus, then by the rest of the key
+     *
+     * @return
+     */
+    public static int compare(long locus1, long high1, long low1, long locus2, long high2, long low2) {
+        int c = Long.compare(locus1, locus2);
+        if (c == 0) {
+            c = Long.compare(high1, high2);
+        }
+        if (c == 0) {
+            c = Long.compare(low1, low2);
+        }
+        return c;
+    }
+
+    /**
+     * Quicksort of keys stored as three longs each, between two key indexes inclusive
+     *
+     * @param keys
+     * @param from
+     * @param to
+     */
+    private static void sort(long[] keys, int from, int to) {
+        while (to - from > 16) {
+            int middle = (from + to) >>> 1;
+            swap(keys, middle, to);
+
+            int store = from;
+            for (int i = from; i < to; i++) {
+                if (compare(keys, i, keys, to) < 0) {
+                    swap(keys, i, store++);
+                }
+            }
+            swap(keys, store, to);
+
+            // Recurse into the smaller side so the stack stays shallow
+            if (store - from < to - store) {
+                sort(keys, from, store - 1);
+                from = store + 1;
+            } else {
+                sort(keys, store + 1, to);
+                to = store - 1;
+            }
+        }
+
+        for (int i = from + 1; i <= to; i++) {
+            for (int j = i; j > from && compare(keys, j - 1, keys, j) > 0; j--) {
+                swap(keys, j - 1, j);
+            }
+        }
+    }
+
+    private static int compare(long[] a, int i, long[] b, int j) {
+        return compare(a[i * 3], a[i * 3 + 1], a[i * 3 + 2], b[j * 3], b[j * 3 + 1], b[j * 3 + 2]);
+    }
+
+    private static void swap(long[] keys, int i, int j) {
+        for (int k = 0; k < 3; k++) {
+            long key = keys[i * 3 + k];
+            keys[i * 3 + k] = keys[j * 3 + k];
+            keys[j * 3 + k] = key;
+        }
+    }
+
+    private void spill(KeyBuffer buffer) {
+        sort(buffer.keys, buffer.size);
+        runConsumer.accept(buffer.keys, removeRepeats(buffer.keys, buffer.size));
+        buffer.size = 0;
+    }
+
+    private KeyBuffer createBuffer() {
+        KeyBuffer buffer = new KeyBuffer();
+        allBuffers.add(buffer);
+        return buffer;
+    }
+
+    /**
+     * The keys one thread has added
+     */
+    private class KeyBuffer {
+        private long[] keys = new long[Math.min(maxBufferKeys, INITIAL_BUFFER_KEYS) * 3];
+        private int size;
+
+        void add(long locus, long high, long low) {
+            if (size * 3 == keys.length) {
+                // The buffer is spilled once it holds maxBufferKeys, so it never grows past that
+                keys = Arrays.copyOf(keys, (int) Math.min((long) maxBufferKeys * 3, (long) keys.length * 2));
+            }
+            keys[size * 3] = locus;
+            keys[size * 3 + 1] = high;
+            keys[size * 3 + 2] = low;
+            size++;
+        }
+    }
+}
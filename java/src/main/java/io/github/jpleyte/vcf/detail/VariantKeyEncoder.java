@@ -0,0 +1,220 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.util.List;
+
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.VariantContext;
+
+/**
+ * Fills in a VariantKey from a VariantContext without building strings or using streams. An encoder keeps scratch space
+ * and remembers the last contig it looked up, so each worker thread needs its own.
+ *
+ * @author j
+ *
+ */
+public class VariantKeyEncoder {
+    private static final int LENGTH_BITS = 6;
+    private static final int MAX_EXACT_BASES = (127 - 2 * LENGTH_BITS) / 2;
+    static final long SEED_HIGH = 0x27D4EB2F165667C5L;
+    static final long SEED_LOW = 0x85EBCA77C2B2AE63L;
+
+    private final ContigIndex contigIndex;
+    private byte[][] alternates = new byte[4][];
+    private AlleleNormalizer alleleNormalizer;
+
+    // The contig of the previous record, which is almost always the contig of the next one
+    private String lastContig;
+    private int lastContigIndex;
+
+    /**
+     * Constructor
+     *
+     * @param contigIndex
+     */
+    public VariantKeyEncoder(ContigIndex contigIndex) {
+        this.contigIndex = contigIndex;
+    }
+
+    /**
+     * Fill in the key for a variant
+     *
+     * @param vc
+     * @param key
+     */
+    public void encode(VariantContext vc, VariantKey key) {
+        List<Allele> alleles = vc.getAlleles();
+        int numberOfAlternates = alleles.size() - 1;
+        if (numberOfAlternates > alternates.length) {
+            alternates = new byte[numberOfAlternates][];
+        }
+        for (int i = 0; i < numberOfAlternates; i++) {
+            alternates[i] = alleles.get(i + 1).getDisplayBases();
+        }
+
+        byte[] reference = alleles.get(0).getDisplayBases();
+        if (alleleNormalizer != null
+                && alleleNormalizer.normalize(vc.getContig(), vc.getStart(), reference, alternates, numberOfAlternates)) {
+            encode(getContigIndex(vc.getContig()), alleleNormalizer.getPosition(), alleleNormalizer.getReference(),
+                    alleleNormalizer.getAlternates(), numberOfAlternates, key);
+            return;
+        }
+
+        encode(getContigIndex(vc.getContig()), vc.getStart(), reference, alternates, numberOfAlternates, key);
+    }
+
+    /**
+     * Fill in the key for a variant from its alleles. The key does not depend on the order of the alternates.
+     *
+     * @param contig
+     * @param position
+     * @param reference
+     * @param alternates
+     * @param numberOfAlternates
+     * @param key
+     */
+    public void encode(int contig, int position, byte[] reference, byte[][] alternates, int numberOfAlternates,
+            VariantKey key) {
+        long locus = VariantKey.toLocus(contig, position);
+        key.setAlleles(reference, alternates, numberOfAlternates);
+
+        if (numberOfAlternates <= 1 && canPackExactly(reference, alternates, numberOfAlternates)) {
+            packExactly(locus, reference, numberOfAlternates == 1 ? alternates[0] : null, key);
+            return;
+        }
+
+        // Alternates are combined by adding their hashes, which gives the same result in any order
+        long sumHigh = 0;
+        long sumLow = 0;
+        for (int i = 0; i < numberOfAlternates; i++) {
+            sumHigh += hash(alternates[i], SEED_HIGH);
+            sumLow += hash(alternates[i], SEED_LOW);
+        }
+
+        long high = mix(hash(reference, SEED_HIGH) ^ (sumHigh * 0x9E3779B97F4A7C15L) ^ numberOfAlternates);
+        long low = mix(hash(reference, SEED_LOW) + sumLow * 0xC2B2AE3D27D4EB4FL + numberOfAlternates);
+        key.set(locus, high & ~VariantKey.EXACT_FLAG, low);
+    }
+
+    /**
+     * Return the index of a contig. Contig names from the codec are usually the same String instance from one record to
+     * the next, so the identity check avoids the map lookup almost every time.
+     *
+     * @param contig
+     * @return
+     */
+    public int getContigIndex(String contig) {
+        if (contig != lastContig && !contig.equals(lastContig)) {
+            lastContigIndex = contigIndex.getIndex(contig);
+            lastContig = contig;
+        }
+        return lastContigIndex;
+    }
+
+    public ContigIndex getContigIndex() {
+        return contigIndex;
+    }
+
+    /**
+     * Left align and trim alleles before making keys from a VariantContext. The normalizer must belong to this encoder's
+     * thread.
+     *
+     * @param alleleNormalizer
+     */
+    public void setAlleleNormalizer(AlleleNormalizer alleleNormalizer) {
+        this.alleleNormalizer = alleleNormalizer;
+    }
+
+    private static boolean canPackExactly(byte[] reference, byte[][] alternates, int numberOfAlternates) {
+        int length = reference.length + (numberOfAlternates == 1 ? alternates[0].length : 0);
+        if (length > MAX_EXACT_BASES) {
+            return false;
+        }
+        return isPackable(reference) && (numberOfAlternates == 0 || isPackable(alternates[0]));
+    }
+
+    private static boolean isPackable(byte[] bases) {
+        for (byte base : bases) {
+            if (baseCode(base) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pack two bits per base followed by the lengths of the alleles into 127 bits, and set the top bit. The lengths are
+     * in the lowest 12 bits so that VariantKey can unpack the alleles.
+     *
+     * @param locus
+     * @param reference
+     * @param alternate
+     * @param key
+     */
+    private static void packExactly(long locus, byte[] reference, byte[] alternate, VariantKey key) {
+        long high = 0;
+        long low = 0;
+
+        for (byte base : reference) {
+            high = (high << 2) | (low >>> 62);
+            low = (low << 2) | baseCode(base);
+        }
+        if (alternate != null) {
+            for (byte base : alternate) {
+                high = (high << 2) | (low >>> 62);
+                low = (low << 2) | baseCode(base);
+            }
+        }
+
+        high = (high << 2 * LENGTH_BITS) | (low >>> (64 - 2 * LENGTH_BITS));
+        low = (low << 2 * LENGTH_BITS) | ((long) reference.length << LENGTH_BITS) | (alternate == null ? 0 : alternate.length);
+
+        key.set(locus, high | VariantKey.EXACT_FLAG, low);
+    }
+
+    private static int baseCode(byte base) {
+        switch (base) {
+        case 'A':
+            return 0;
+        case 'C':
+            return 1;
+        case 'G':
+            return 2;
+        case 'T':
+            return 3;
+        default:
+            return -1;
+        }
+    }
+
+    static long hash(byte[] bases, long seed) {
+        long h = seed ^ bases.length;
+        for (byte base : bases) {
+            h = (h ^ base) * 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    static long hash(String text, long seed) {
+        int length = text.length();
+        long h = seed ^ length;
+        for (int i = 0; i < length; i++) {
+            h = (h ^ text.charAt(i)) * 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * MurmurHash3 64 bit finaliser
+     *
+     * @param h
+     * @return
+     */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
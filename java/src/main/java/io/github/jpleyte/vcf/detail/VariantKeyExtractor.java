@@ -0,0 +1,31 @@
+package io.github.jpleyte.vcf.detail;
+
+import htsjdk.variant.variantcontext.VariantContext;
+
+/**
+ * Makes the key that decides if two records are duplicates. There is one implementation per --uniqueBy choice, picked
+ * once at startup, so the worker threads never check the choice per record and only read the fields the key needs.
+ * An extractor may keep scratch space, so each thread needs its own.
+ *
+ * @author j
+ *
+ */
+public interface VariantKeyExtractor {
+
+    /**
+     * Fill in the key for a record
+     *
+     * @param vc
+     * @param key
+     * @return false if the record has no key, such as a missing ID, and cannot be a duplicate
+     */
+    boolean extract(VariantContext vc, VariantKey key);
+
+    /**
+     * Return true if a duplicate is always at the same contig and position as the record it duplicates, which the
+     * sorted and two pass duplicate searches depend on
+     *
+     * @return
+     */
+    boolean isPositional();
+}
@@ -0,0 +1,119 @@
+package io.github.jpleyte.vcf.detail;
+
+import htsjdk.variant.variantcontext.Allele;
+
+/**
+ * Sorts alternate alleles into types by comparing their bases with the reference's, and tells transitions from
+ * transversions. The types are small integers so counts can be kept in primitive arrays.
+ *
+ * @author j
+ *
+ */
+public final class VariantType {
+    public static final int SNP = 0;
+    public static final int MNP = 1;
+    public static final int INSERTION = 2;
+    public static final int DELETION = 3;
+    // Alleles of different lengths that are not a simple insertion or deletion, such as AC>T
+    public static final int COMPLEX = 4;
+    // Symbolic alleles that do not describe a variant, such as <*> and <NON_REF>
+    public static final int SYMBOLIC = 5;
+    // Symbolic structural variant alleles, such as <DEL> and <DUP>, and breakends
+    public static final int SV = 6;
+    public static final int NUMBER_OF_TYPES = 7;
+    public static final int NONE = -1;
+
+    private static final String[] NAMES = { "SNP", "MNP", "INS", "DEL", "COMPLEX", "SYMBOLIC", "SV" };
+
+    private VariantType() {
+    }
+
+    /**
+     * Return the type of an alternate allele, or NONE for the spanning deletion allele (*), which stands for a variant
+     * counted at another record
+     *
+     * @param reference
+     * @param alternate
+     * @return
+     */
+    public static int classify(Allele reference, Allele alternate) {
+        if (alternate.isSymbolic()) {
+            return alternate.isNonRefAllele() ? SYMBOLIC : SV;
+        }
+
+        byte[] ref = reference.getBases();
+        byte[] alt = alternate.getBases();
+        if (alt.length == 1 && alt[0] == '*') {
+            return NONE;
+        }
+        if (ref.length == alt.length) {
+            return ref.length == 1 ? SNP : MNP;
+        }
+        if (alt.length > ref.length) {
+            return isPadded(ref, alt) ? INSERTION : COMPLEX;
+        }
+        return isPadded(alt, ref) ? DELETION : COMPLEX;
+    }
+
+    /**
+     * Return true if the change from one base to the other is a purine to purine or pyrimidine to pyrimidine change
+     *
+     * @param reference
+     * @param alternate
+     * @return
+     */
+    public static boolean isTransition(byte reference, byte alternate) {
+        int from = reference & 0xDF;
+        int to = alternate & 0xDF;
+        return (from == 'A' && to == 'G') || (from == 'G' && to == 'A') || (from == 'C' && to == 'T')
+                || (from == 'T' && to == 'C');
+    }
+
+    /**
+     * Return true if the change from one base to the other is a purine to pyrimidine change or the reverse
+     *
+     * @param reference
+     * @param alternate
+     * @return
+     */
+    public static boolean isTransversion(byte reference, byte alternate) {
+        boolean fromPurine = isPurine(reference);
+        boolean toPurine = isPurine(alternate);
+        return (fromPurine || isPyrimidine(reference)) && (toPurine || isPyrimidine(alternate))
+                && fromPurine != toPurine;
+    }
+
+    public static String getName(int type) {
+        return NAMES[type];
+    }
+
+    private static boolean isPurine(byte base) {
+        int b = base & 0xDF;
+        return b == 'A' || b == 'G';
+    }
+
+    private static boolean isPyrimidine(byte base) {
+        int b = base & 0xDF;
+        return b == 'C' || b == 'T';
+    }
+
+    /**
+     * Return true if the shorter allele starts or ends the longer one, as in an insertion or deletion padded with the
+     * base before it (or after it, at the start of a contig)
+     *
+     * @param shorter
+     * @param longer
+     * @return
+     */
+    private static boolean isPadded(byte[] shorter, byte[] longer) {
+        boolean prefix = true;
+        boolean suffix = true;
+        int offset = longer.length - shorter.length;
+        for (int i = 0; i < shorter.length && (prefix || suffix); i++) {
+            int base = shorter[i] & 0xDF;
+            prefix &= base == (longer[i] & 0xDF);
+            suffix &= base == (longer[offset + i] & 0xDF);
+        }
+        return prefix || suffix;
+    }
+}
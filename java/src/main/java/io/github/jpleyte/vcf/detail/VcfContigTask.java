@@ -0,0 +1,55 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.function.BiFunction;
+import java.util.logging.Logger;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFFileReader;
+import io.github.jpleyte.log.BootstrapLogger;
+
+/**
+ * Worker used when VcfDetails reads an indexed VCF one contig at a time. Each worker opens its own reader and keeps
+ * taking contigs from the shared queue until it is empty, so decompression and parsing are spread across the workers
+ * and every contig is read by exactly one of them.
+ *
+ * @author j
+ *
+ */
+public class VcfContigTask implements Runnable {
+    private static final Logger log = BootstrapLogger.configureLogger(VcfContigTask.class.getName());
+
+    private final File vcfFile;
+    private final Queue<String> contigs;
+    private final BiFunction<String, Iterator<VariantContext>, VcfDetailsTask> taskFactory;
+
+    /**
+     * Constructor
+     *
+     * @param vcfFile
+     * @param contigs
+     * @param taskFactory creates the task that analyses the records of one contig, given the contig and its records
+     */
+    public VcfContigTask(File vcfFile, Queue<String> contigs,
+            BiFunction<String, Iterator<VariantContext>, VcfDetailsTask> taskFactory) {
+        this.vcfFile = vcfFile;
+        this.contigs = contigs;
+        this.taskFactory = taskFactory;
+    }
+
+    @Override
+    public void run() {
+        try (VCFFileReader vcfFileReader = new VCFFileReader(vcfFile, true)) {
+            String contig;
+            while ((contig = contigs.poll()) != null) {
+                log.fine("Querying contig " + contig);
+                try (CloseableIterator<VariantContext> iter = vcfFileReader.query(contig, 1, Integer.MAX_VALUE)) {
+                    taskFactory.apply(contig, iter).run();
+                }
+            }
+        }
+    }
+}
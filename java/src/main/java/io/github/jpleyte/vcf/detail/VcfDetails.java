@@ -1,10 +1,36 @@
 package io.github.jpleyte.vcf.detail;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.time.Duration;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
@@ -18,9 +44,17 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.commons.lang3.time.StopWatch;
 
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.tribble.AbstractFeatureReader;
+import htsjdk.tribble.readers.LineIteratorImpl;
+import htsjdk.tribble.readers.SynchronousLineReader;
 import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
 import htsjdk.variant.vcf.VCFFileReader;
+import htsjdk.variant.vcf.VCFHeader;
 import io.github.jpleyte.log.BootstrapLogger;
 
 /**
@@ -30,10 +64,10 @@ import io.github.jpleyte.log.BootstrapLogger;
  * - [ ] Try using HTSLib instead of HtsJdk 
  * - [x] Use multiple threads 
  * - [ ] Add support for file input via stdio 
- * - [ ] Add support for bgz index 
- * - [ ] allow user to specify what is expected to be unique (ie just the ID or the genotype, or everything) 
- * - [ ] Add option to determine if vcf is sorted (probably can't be multi-threaded)
- * - [ ] Add more stats: Like N variants across N locations, counts by chromosome, presence/amount of duplicate alleles contexts, presence/amount of multiallelic sites, etc
+ * - [x] Add support for bgz index 
+ * - [x] allow user to specify what is expected to be unique (ie just the ID or the genotype, or everything) 
+ * - [x] Add option to determine if vcf is sorted (checkSorted: each task checks its own chunk and the chunk boundaries are stitched together at the end, so it works with splitBgzf and decodeInWorkers). Sorted input can be assumed with --sortedInput, which notices if it isn't.
+ * - [ ] Add more stats: Like N variants across N locations, counts by chromosome, presence/amount of duplicate alleles contexts, presence/amount of multiallelic sites, etc. Variant types and Ti/Tv are done.
  * @author j
  *
  */
@@ -41,8 +75,61 @@ public class VcfDetails {
 
     private static final Logger log = BootstrapLogger.configureLogger(VcfDetails.class.getName());
     private static final int DEFAULT_NUMBER_OF_THREADS = 2;
+    private static final int DEFAULT_QUEUE_DEPTH = 64;
+    private static final int MAX_BATCH_SIZE = 1024;
+    private static final int GENOTYPES_PER_BATCH = 256 * 1024;
+    private static final long DEFAULT_EXPECTED_VARIANTS = 10000000L;
+    private static final double BLOOM_FILTER_FALSE_POSITIVE_RATE = 0.001;
+    private static final int DEFAULT_RUN_SIZE = 1 << 20;
+    // Keys a thread exports before they are written as a sorted run; 24 MB
+    private static final int EXPORT_RUN_KEYS = 1 << 20;
+    private static final int RANGES_PER_THREAD = 4;
+    private static final String QUEUE_FULL_POLICY_BLOCK = "block";
+    private static final String QUEUE_FULL_POLICY_CALLER_RUNS = "callerRuns";
+    private static final String UNIQUE_BY_ID = "id";
+    private static final String UNIQUE_BY_POSITION = "position";
+    private static final String UNIQUE_BY_ALLELES = "alleles";
+    private static final String UNIQUE_BY_GENOTYPES = "genotypes";
+    private static final String HISTORY_MODE_READ = "read";
+    private static final String HISTORY_MODE_READ_WRITE = "readWrite";
     private static final String DELIMETER = "\t";
     private int numberOfThreads;
+    private long expectedVariants;
+    private String uniqueBy;
+    private boolean sortedInput;
+    private boolean partitionByContig;
+    private boolean releaseTaskDuplicateIndexes;
+    private ContigPartitionedDuplicateVariantIndex contigPartitionedIndex;
+    private File referenceFile;
+    private MappedFastaReference mappedReference;
+    private File historyDirectory;
+    private boolean historyWritable;
+    private VariantHistory variantHistory;
+    private long numberOfVariantsAddedToHistory;
+    private int densityWindowSize;
+    private File densityFile;
+    private File sampleStatsFile;
+    private Set<String> selectedSamples;
+    private SampleGenotypeCounter sampleGenotypeCounter;
+    private Executor sampleColumnHelpers;
+    private ThreadPoolExecutor sampleColumnHelperPool;
+    private File snapshotFile;
+    private List<File> mergedSnapshotFiles;
+    private VariantKeyCollector exportedKeys;
+    private KeyRunFiles exportedKeyRuns;
+    private SortOrderChecker sortOrderChecker;
+    private CandidateDuplicateVariantIndex candidateDuplicateIndex;
+    private ExternalSortDuplicateVariantIndex externalSortIndex;
+    private int runSize;
+    private File tempDirectory;
+    private File indexDirectory;
+    private int queueDepth;
+    private int batchSize;
+    private int peakQueueDepth;
+    // Gives a task its duplicate checker, from the contig the task reads or -1 if it reads any contig
+    private IntFunction<DuplicateVariantChecker> taskDuplicateVariantCheckers;
+    private final List<SortedDuplicateVariantIndex> sortedDuplicateVariantIndexes = new CopyOnWriteArrayList<>();
+    private ContigIndex contigIndex;
     private File vcfFile;
     private CommandLine commandLine = null;
     private Duration duration;
@@ -92,44 +179,763 @@ public class VcfDetails {
         StopWatch stopWatch = new StopWatch();
         stopWatch.start();
 
+        VcfDetailsSnapshot snapshot = mergedSnapshotFiles != null ? mergeSnapshots() : analyse();
+
+        stopWatch.stop();
+        duration = Duration.ofMillis(stopWatch.getTime());
+
+        if (snapshotFile != null) {
+            writeSnapshot(snapshot);
+        }
+        VcfDetailsAccumulator totals = snapshot.getAccumulator();
+        if (!"false".equals(commandLine.getOptionValue("summary"))) {
+            printSummary(totals);
+        }
+        if (densityFile != null) {
+            writeDensityProfile(totals.getDensityProfile());
+        }
+        if (sampleStatsFile != null) {
+            writeSampleStats(snapshot.getSampleNames(), totals.getSampleGenotypeCounts());
+        }
+    }
+
+    /**
+     * Analyse the VCF and return its results
+     *
+     * @return
+     */
+    private VcfDetailsSnapshot analyse() {
         log.info("Reading " + vcfFile);
 
         // Create a thread pool
-        log.fine("Creating thread pool of size " + numberOfThreads);
-        ExecutorService pool = Executors.newFixedThreadPool(numberOfThreads);
+        log.fine("Creating thread pool of size " + numberOfThreads + " with a queue depth of " + queueDepth);
+        ThreadPoolExecutor pool = createThreadPool();
+
+        contigIndex = new ContigIndex(VCFFileReader.getSequenceDictionary(vcfFile));
+        if (sampleStatsFile != null) {
+            sampleGenotypeCounter = createSampleGenotypeCounter();
+            if (commandLine.hasOption("splitSamples")) {
+                sampleColumnHelperPool = createSampleColumnHelperPool();
+                sampleColumnHelpers = sampleColumnHelperPool;
+            }
+        }
+        VcfDetailsModel details = new VcfDetailsModel(contigIndex, densityWindowSize,
+                sampleGenotypeCounter == null ? 0 : sampleGenotypeCounter.getSampleNames().size());
+        if (referenceFile != null) {
+            mappedReference = new MappedFastaReference(referenceFile);
+        }
+        if (historyDirectory != null) {
+            // Keys of different kinds cannot be compared, so a history only takes keys made the same way
+            variantHistory = new VariantHistory(historyDirectory, historyWritable, getKeyType(), contigIndex);
+        }
+        if (commandLine.hasOption("exportKeys")) {
+            // Each thread writes its keys as a sorted run whenever it has EXPORT_RUN_KEYS, and the runs are merged into
+            // the snapshot file
+            exportedKeyRuns = new KeyRunFiles(tempDirectory);
+            exportedKeys = new VariantKeyCollector(EXPORT_RUN_KEYS, exportedKeyRuns);
+        }
+        if (commandLine.hasOption("checkSorted")) {
+            sortOrderChecker = new SortOrderChecker(contigIndex);
+        }
+
+        // Keys that are not positional can be anywhere in the file, and normalized keys can move to the left
+        boolean positional = createVariantKeyExtractor().isPositional();
+        sortedInput = commandLine.hasOption("sortedInput") && positional && mappedReference == null;
+        if (commandLine.hasOption("sortedInput") && !positional) {
+            log.warning("sortedInput is ignored with uniqueBy " + uniqueBy);
+        } else if (commandLine.hasOption("sortedInput") && mappedReference != null) {
+            log.warning("sortedInput is ignored with reference because normalized records may no longer be sorted");
+        }
+        if (commandLine.hasOption("twoPass")) {
+            if (sortedInput) {
+                log.warning("sortedInput is ignored with twoPass");
+            }
+            candidateDuplicateIndex = new CandidateDuplicateVariantIndex(
+                    expectedVariants > 0 ? expectedVariants : DEFAULT_EXPECTED_VARIANTS, BLOOM_FILTER_FALSE_POSITIVE_RATE);
+        } else if (commandLine.hasOption("externalSort")) {
+            if (sortedInput) {
+                log.warning("sortedInput is ignored with externalSort");
+            }
+            externalSortIndex = new ExternalSortDuplicateVariantIndex(runSize, tempDirectory);
+        }
+
+        // Sorted input already keeps only the current position, and the other modes need every key until the end
+        partitionByContig = commandLine.hasOption("partitionByContig") && positional && !sortedInput
+                && candidateDuplicateIndex == null && externalSortIndex == null;
+        if (commandLine.hasOption("partitionByContig") && !partitionByContig) {
+            log.warning("partitionByContig is ignored; it cannot be used with uniqueBy " + UNIQUE_BY_ID
+                    + ", sortedInput, twoPass or externalSort");
+        }
+
+        if (commandLine.hasOption("byContig") && isIndexed()) {
+            // Each contig is read in order by one thread, so sorted input can have an index per contig
+            if (sortedInput) {
+                taskDuplicateVariantCheckers = contig -> createDuplicateVariantChecker(true, contig);
+            } else if (partitionByContig) {
+                // The task of a contig owns its index and releases it when the contig is done
+                taskDuplicateVariantCheckers = contig -> createDuplicateVariantChecker(false, contig);
+                releaseTaskDuplicateIndexes = true;
+            } else {
+                useSharedDuplicateVariantChecker();
+            }
+            if (sortOrderChecker != null) {
+                // Querying the index gives each contig's records but not where the contig is in the file
+                log.warning("checkSorted is ignored with byContig; the records of each contig are read from the index");
+                sortOrderChecker = null;
+            }
+            readByContig(pool, details);
+        } else if (commandLine.hasOption("splitBgzf") && isBlockCompressed()) {
+            warnIfSortedInputIsIgnored("splitBgzf");
+            warnIfPartitionByContigIsIgnored("splitBgzf");
+            useSharedDuplicateVariantChecker();
+            readByBgzfRange(details);
+        } else if (commandLine.hasOption("decodeInWorkers")) {
+            warnIfSortedInputIsIgnored("decodeInWorkers");
+            warnIfPartitionByContigIsIgnored("decodeInWorkers");
+            useSharedDuplicateVariantChecker();
+            readLinesSequentially(pool, details);
+        } else {
+            if (commandLine.hasOption("byContig")) {
+                log.warning("No index found for " + vcfFile.getName() + "; reading the whole file on one thread");
+            } else if (commandLine.hasOption("splitBgzf")) {
+                log.warning(vcfFile.getName() + " is not block compressed; reading the whole file on one thread");
+            }
+            readSequentially(pool, details);
+        }
+
+        // Indicate that we are done adding tasks
+        pool.shutdown();
+
+        // Wait for the tasks to complete
+        try {
+            pool.awaitTermination(2, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            log.severe("Two hour time limit reached; shutting down.");
+        }
+        if (sampleColumnHelperPool != null) {
+            sampleColumnHelperPool.shutdown();
+        }
+        if (sortOrderChecker != null) {
+            sortOrderChecker.stitch();
+        }
+
+        if (candidateDuplicateIndex != null) {
+            confirmDuplicateCandidates(details);
+        } else if (externalSortIndex != null) {
+            DuplicateVariantChecker duplicateVariantChecker = new DuplicateVariantChecker(externalSortIndex,
+                    contigIndex, commandLine.hasOption("showDuplicateGenotypes"));
+            VcfDetailsAccumulator accumulator = details.getAccumulator();
+            externalSortIndex.findDuplicates(
+                    (key, ordinal) -> duplicateVariantChecker.recordDuplicate(key, ordinal, accumulator));
+        }
+
+        if (variantHistory != null) {
+            numberOfVariantsAddedToHistory = variantHistory.close(commandLine.hasOption("compactHistory"));
+        }
 
-        VcfDetailsModel details = new VcfDetailsModel();
+        List<String> sampleNames = sampleGenotypeCounter == null ? Collections.emptyList()
+                : sampleGenotypeCounter.getSampleNames();
+        if (exportedKeys != null) {
+            exportedKeys.flush();
+        }
+        return new VcfDetailsSnapshot(getKeyType(), contigIndex, densityWindowSize, sampleNames, details.snapshot(),
+                exportedKeyRuns);
+    }
+
+    /**
+     * Merge the snapshots of earlier runs over shards of the input
+     *
+     * @return
+     */
+    private VcfDetailsSnapshot mergeSnapshots() {
+        List<VcfDetailsSnapshot> snapshots = new ArrayList<>();
+        for (File file : mergedSnapshotFiles) {
+            log.info("Reading snapshot " + file);
+            try {
+                VcfDetailsSnapshot snapshot = VcfDetailsSnapshot.read(file);
+                if (!snapshot.hasKeys() && mergedSnapshotFiles.size() > 1) {
+                    log.warning(file.getName() + " has no exported keys; duplicates between it and other snapshots "
+                            + "will not be counted");
+                }
+                snapshots.add(snapshot);
+            } catch (IOException e) {
+                log.severe("Unable to read snapshot " + file + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        VcfDetailsSnapshot merged = null;
+        try {
+            merged = VcfDetailsSnapshot.merge(snapshots);
+        } catch (IllegalArgumentException e) {
+            log.severe("Unable to merge snapshots: " + e.getMessage());
+            System.exit(1);
+        }
+        contigIndex = merged.getContigIndex();
+        if (densityFile != null && merged.getDensityWindowSize() == 0) {
+            log.warning("Snapshots have no density profile; " + densityFile + " will not be written");
+            densityFile = null;
+        }
+        if (sampleStatsFile != null && merged.getSampleNames().isEmpty()) {
+            log.warning("Snapshots have no sample genotype counts; " + sampleStatsFile + " will not be written");
+            sampleStatsFile = null;
+        }
+        return merged;
+    }
+
+    /**
+     * Write the results to a snapshot file, for merging with the results of other shards
+     *
+     * @param snapshot
+     */
+    private void writeSnapshot(VcfDetailsSnapshot snapshot) {
+        try {
+            snapshot.write(snapshotFile);
+        } catch (IOException e) {
+            log.severe("Unable to write " + snapshotFile + ": " + e.getMessage());
+            System.exit(1);
+        }
+        log.info("Wrote snapshot" + (snapshot.hasKeys() ? " with keys" : "") + " to " + snapshotFile);
+    }
+
+    /**
+     * Return what kind of keys the records are given. Keys of different kinds cannot be compared.
+     *
+     * @return
+     */
+    private String getKeyType() {
+        return uniqueBy + (mappedReference != null ? "-normalized" : "");
+    }
+
+    /**
+     * Read the VCF on this thread and hand the records to the worker threads in batches
+     *
+     * @param pool
+     * @param details
+     */
+    private void readSequentially(ThreadPoolExecutor pool, VcfDetailsModel details) {
+        // Sorted input is checked for duplicates here, while the records are still in order
+        DuplicateVariantChecker orderedDuplicateVariantChecker = null;
+        VcfDetailsAccumulator readerAccumulator = sortedInput ? details.getAccumulator() : null;
+        VariantKeyExtractor variantKeyExtractor = createVariantKeyExtractor();
+        VariantKey variantKey = new VariantKey();
+        if (sortedInput) {
+            orderedDuplicateVariantChecker = createDuplicateVariantChecker(true, -1);
+            taskDuplicateVariantCheckers = contig -> null;
+        } else if (partitionByContig) {
+            contigPartitionedIndex = new ContigPartitionedDuplicateVariantIndex(this::createContigDuplicateVariantIndex,
+                    contigIndex);
+            DuplicateVariantChecker duplicateVariantChecker = new DuplicateVariantChecker(contigPartitionedIndex,
+                    contigIndex, commandLine.hasOption("showDuplicateGenotypes"));
+            attachVariantHistory(duplicateVariantChecker);
+            taskDuplicateVariantCheckers = contig -> duplicateVariantChecker;
+        } else {
+            useSharedDuplicateVariantChecker();
+        }
+
+        // The contigs in the current batch, and the contig of the last record read, for the partitioned index
+        VariantKeyEncoder contigLookup = new VariantKeyEncoder(contigIndex);
+        List<Integer> batchContigs = new ArrayList<>();
+        int currentContig = -1;
 
         try (VCFFileReader vcfFileReader = new VCFFileReader(vcfFile, false);
                 CloseableIterator<VariantContext> iter = vcfFileReader.iterator()) {
+            if (batchSize == 0) {
+                batchSize = getAdaptiveBatchSize(vcfFileReader.getFileHeader().getNGenotypeSamples());
+            }
+            log.fine("Submitting records in batches of " + batchSize);
+
+            long ordinal = 0;
+            List<VariantContext> batch = new ArrayList<>(batchSize);
             while (iter.hasNext()) {
-                final VariantContext context = iter.next();
-                VcfDetailsTask vdr = new VcfDetailsTask(context, details);
-                vdr.setPrintStatusUpdates(commandLine.hasOption("showDuplicateGenotypes"));
-                vdr.setPrintDuplicateGenotypes(commandLine.hasOption("showDuplicateGenotypes"));
-                vdr.setPrintMultiAllelicAlternates(commandLine.hasOption("showMultiallelicAlts"));
-                pool.execute(vdr);
+                VariantContext vc = iter.next();
+                if (orderedDuplicateVariantChecker != null && variantKeyExtractor.extract(vc, variantKey)) {
+                    orderedDuplicateVariantChecker.check(variantKey, ordinal + batch.size(), readerAccumulator);
+                }
+
+                if (contigPartitionedIndex != null) {
+                    // A contig's partition is held by every batch with its records, and finished when the contig ends
+                    int contig = contigLookup.getContigIndex(vc.getContig());
+                    if (batch.isEmpty() || contig != currentContig) {
+                        contigPartitionedIndex.retain(contig);
+                        batchContigs.add(contig);
+                    }
+                    if (contig != currentContig && currentContig >= 0) {
+                        contigPartitionedIndex.finishContig(currentContig);
+                    }
+                    currentContig = contig;
+                }
+
+                batch.add(vc);
+                if (batch.size() == batchSize) {
+                    submitBatch(pool, batch, batchContigs, ordinal, details);
+                    ordinal += batch.size();
+                    batch = new ArrayList<>(batchSize);
+                    batchContigs = new ArrayList<>();
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                submitBatch(pool, batch, batchContigs, ordinal, details);
+            }
+            if (currentContig >= 0) {
+                contigPartitionedIndex.finishContig(currentContig);
             }
         }
+    }
 
-        // Indicate that we are done adding tasks
-        pool.shutdown();
+    /**
+     * Submit a batch read by readSequentially, releasing its contigs' partitions of the duplicate index when it is done
+     *
+     * @param pool
+     * @param batch
+     * @param batchContigs
+     * @param ordinal
+     * @param details
+     */
+    private void submitBatch(ThreadPoolExecutor pool, List<VariantContext> batch, List<Integer> batchContigs,
+            long ordinal, VcfDetailsModel details) {
+        VcfDetailsTask task = createTask(batch.iterator(), details);
+        if (contigPartitionedIndex != null) {
+            task.setCompletionCallback(() -> {
+                for (int contig : batchContigs) {
+                    contigPartitionedIndex.release(contig);
+                }
+            });
+        }
+        submit(pool, task, ordinal);
+    }
+
+    /**
+     * Create a duplicate checker with its own index
+     *
+     * @param sortedInput true if the records given to the checker are sorted and in file order
+     * @param contig the only contig the checker sees, whose share of the expected variants its index is sized for, or
+     *            -1 if it sees every contig
+     * @return
+     */
+    private DuplicateVariantChecker createDuplicateVariantChecker(boolean sortedInput, int contig) {
+        Supplier<DuplicateVariantIndex> indexFactory = contig < 0 ? this::createGlobalDuplicateVariantIndex
+                : () -> createContigDuplicateVariantIndex(contig);
+        DuplicateVariantIndex duplicateVariantIndex;
+        if (candidateDuplicateIndex != null) {
+            duplicateVariantIndex = candidateDuplicateIndex;
+        } else if (externalSortIndex != null) {
+            duplicateVariantIndex = externalSortIndex;
+        } else if (sortedInput) {
+            SortedDuplicateVariantIndex sortedIndex = new SortedDuplicateVariantIndex(indexFactory);
+            sortedDuplicateVariantIndexes.add(sortedIndex);
+            duplicateVariantIndex = sortedIndex;
+        } else {
+            duplicateVariantIndex = indexFactory.get();
+        }
+
+        DuplicateVariantChecker duplicateVariantChecker = new DuplicateVariantChecker(duplicateVariantIndex, contigIndex,
+                commandLine.hasOption("showDuplicateGenotypes"));
+        attachVariantHistory(duplicateVariantChecker);
+        return duplicateVariantChecker;
+    }
+
+    /**
+     * Have a checker that sees every record look up the variants of earlier files, and collect every key if they are
+     * to be written to a snapshot
+     *
+     * @param duplicateVariantChecker
+     */
+    private void attachVariantHistory(DuplicateVariantChecker duplicateVariantChecker) {
+        if (variantHistory != null) {
+            duplicateVariantChecker.setVariantHistory(variantHistory, historyWritable);
+        }
+        if (exportedKeys != null) {
+            duplicateVariantChecker.setExportedKeys(exportedKeys);
+        }
+    }
+
+    /**
+     * Create the key extractor for the uniqueBy option
+     *
+     * @return
+     */
+    private VariantKeyExtractor createVariantKeyExtractor() {
+        switch (uniqueBy) {
+        case UNIQUE_BY_ID:
+            return new IdKeyExtractor();
+        case UNIQUE_BY_POSITION:
+            return new PositionKeyExtractor(contigIndex);
+        case UNIQUE_BY_GENOTYPES:
+            return new GenotypeKeyExtractor(createVariantKeyEncoder());
+        default:
+            return new AlleleKeyExtractor(createVariantKeyEncoder());
+        }
+    }
+
+    /**
+     * Create a key encoder that normalizes alleles against the reference, if one was given
+     *
+     * @return
+     */
+    private VariantKeyEncoder createVariantKeyEncoder() {
+        VariantKeyEncoder variantKeyEncoder = new VariantKeyEncoder(contigIndex);
+        if (mappedReference != null) {
+            variantKeyEncoder.setAlleleNormalizer(new AlleleNormalizer(new ReferenceWindow(mappedReference)));
+        }
+        return variantKeyEncoder;
+    }
+
+    /**
+     * Second pass of the two pass duplicate search: re-read the records at the loci the Bloom filter flagged and count
+     * the exact duplicates among them
+     *
+     * @param details
+     */
+    private void confirmDuplicateCandidates(VcfDetailsModel details) {
+        long[] candidateLoci = candidateDuplicateIndex.getCandidateLoci();
+        log.info("Checking " + candidateLoci.length + " candidate duplicate positions");
+
+        DuplicateVariantChecker exactChecker = new DuplicateVariantChecker(new StripedDuplicateVariantIndex(1),
+                contigIndex, commandLine.hasOption("showDuplicateGenotypes"));
+        new DuplicateCandidateConfirmer(vcfFile, contigIndex, createVariantKeyExtractor(), exactChecker,
+                mappedReference != null, details.getAccumulator()).confirm(candidateLoci);
+    }
+
+    /**
+     * Create an index that holds every variant in the file. It is kept off the heap if the number of variants is given.
+     *
+     * @return
+     */
+    private DuplicateVariantIndex createGlobalDuplicateVariantIndex() {
+        if (expectedVariants > 0) {
+            return new OffHeapDuplicateVariantIndex(expectedVariants, numberOfThreads, indexDirectory);
+        }
+        return new StripedDuplicateVariantIndex(numberOfThreads);
+    }
+
+    /**
+     * Create the index of one contig for partitionByContig. An off heap index is sized for the contig's share of the
+     * expected variants, by its length in the header. A contig without a length starts small and grows.
+     *
+     * @param contig
+     * @return
+     */
+    private DuplicateVariantIndex createContigDuplicateVariantIndex(int contig) {
+        if (expectedVariants <= 0) {
+            return new StripedDuplicateVariantIndex(numberOfThreads);
+        }
+
+        long genomeLength = 0;
+        for (int i = 0; i < contigIndex.getNumberOfDeclaredContigs(); i++) {
+            genomeLength += contigIndex.getLength(i);
+        }
+        long contigLength = contigIndex.getLength(contig);
+        long contigVariants = 1;
+        if (genomeLength > 0 && contigLength > 0) {
+            contigVariants = (long) Math.ceil((double) expectedVariants * contigLength / genomeLength);
+        }
+        return new OffHeapDuplicateVariantIndex(contigVariants, numberOfThreads, indexDirectory);
+    }
+
+    /**
+     * Give every task the same duplicate checker
+     */
+    private void useSharedDuplicateVariantChecker() {
+        DuplicateVariantChecker duplicateVariantChecker = createDuplicateVariantChecker(false, -1);
+        taskDuplicateVariantCheckers = contig -> duplicateVariantChecker;
+    }
+
+    private void warnIfSortedInputIsIgnored(String option) {
+        if (sortedInput) {
+            log.warning("sortedInput cannot be used with " + option + " because records are not checked in file order; "
+                    + "using a global duplicate index");
+        }
+    }
+
+    private void warnIfPartitionByContigIsIgnored(String option) {
+        if (partitionByContig) {
+            log.warning("partitionByContig cannot be used with " + option + "; using a global duplicate index");
+        }
+    }
+
+    /**
+     * Read the raw lines of the VCF on this thread and hand them to the worker threads in batches. The workers decode
+     * the lines themselves, so this thread only has to decompress the file and split it into lines.
+     *
+     * @param pool
+     * @param details
+     */
+    private void readLinesSequentially(ThreadPoolExecutor pool, VcfDetailsModel details) {
+        VCFCodec headerCodec = new VCFCodec();
+        try {
+            readHeader(headerCodec);
+        } catch (IOException e) {
+            log.severe("Unable to read the header of " + vcfFile.getName() + ": " + e.getMessage());
+            System.exit(1);
+        }
+
+        ThreadLocal<VCFCodec> codecs = DecodingIterator.createCodecs(headerCodec.getHeader(), headerCodec.getVersion());
+        if (batchSize == 0) {
+            batchSize = getAdaptiveBatchSize(headerCodec.getHeader().getNGenotypeSamples());
+        }
+        log.fine("Submitting raw lines in batches of " + batchSize);
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(IOUtil.openFileForReading(vcfFile), StandardCharsets.UTF_8))) {
+            long ordinal = 0;
+            List<String> batch = new ArrayList<>(batchSize);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith(VCFHeader.HEADER_INDICATOR)) {
+                    continue;
+                }
+
+                batch.add(line);
+                if (batch.size() == batchSize) {
+                    submit(pool, createTask(new DecodingIterator(batch.iterator(), codecs), details), ordinal);
+                    ordinal += batch.size();
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                submit(pool, createTask(new DecodingIterator(batch.iterator(), codecs), details), ordinal);
+            }
+        } catch (IOException e) {
+            log.severe("Unable to read " + vcfFile.getName() + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Give each worker thread its own reader and let the workers query the indexed VCF one contig at a time
+     *
+     * @param pool
+     * @param details
+     */
+    private void readByContig(ThreadPoolExecutor pool, VcfDetailsModel details) {
+        Queue<String> contigs = new ConcurrentLinkedQueue<>(getContigs());
+        log.fine("Querying " + contigs.size() + " contigs with " + numberOfThreads + " threads");
+
+        for (int i = 0; i < numberOfThreads; i++) {
+            pool.execute(new VcfContigTask(vcfFile, contigs,
+                    (contig, iter) -> createTask(iter, details, contigIndex.getIndex(contig))));
+        }
+    }
+
+    /**
+     * Split a block compressed VCF into ranges of BGZF blocks and decode the ranges concurrently with a fork/join pool.
+     * There are several ranges per thread so that threads which finish early can take work from the others.
+     *
+     * @param details
+     */
+    private void readByBgzfRange(VcfDetailsModel details) {
+        VCFCodec codec = new VCFCodec();
+        List<BgzfRange> ranges;
+        try {
+            readHeader(codec);
+            ranges = BgzfRange.split(vcfFile, numberOfThreads * RANGES_PER_THREAD);
+        } catch (IOException e) {
+            log.severe("Unable to split " + vcfFile.getName() + " into BGZF ranges: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        log.fine("Reading " + ranges.size() + " BGZF ranges with " + numberOfThreads + " threads");
+
+        // The ranges are read in any order, so their sort order chunks are made up front in file order
+        Map<BgzfRange, SortOrderChecker.Chunk> sortOrderChunks = new IdentityHashMap<>();
+        if (sortOrderChecker != null) {
+            for (BgzfRange range : ranges) {
+                sortOrderChunks.put(range, sortOrderChecker.createChunk(-1));
+            }
+        }
+
+        ForkJoinPool forkJoinPool = new ForkJoinPool(numberOfThreads);
+        try {
+            forkJoinPool.invoke(new BgzfRangeTask(vcfFile, codec.getHeader(), codec.getVersion(), ranges,
+                    (range, iter) -> createRangeTask(iter, details, sortOrderChunks.get(range))));
+        } finally {
+            forkJoinPool.shutdown();
+        }
+    }
+
+    /**
+     * Read the VCF header into a codec so that the codec, or others set up with the same header and version, can decode
+     * the records
+     *
+     * @param codec
+     * @throws IOException
+     */
+    private void readHeader(VCFCodec codec) throws IOException {
+        try (LineIteratorImpl lines = new LineIteratorImpl(
+                new SynchronousLineReader(IOUtil.openFileForReading(vcfFile)))) {
+            codec.readActualHeader(lines);
+        }
+    }
+
+    /**
+     * Return true if the VCF is compressed with BGZF
+     *
+     * @return
+     */
+    private boolean isBlockCompressed() {
+        try {
+            return IOUtil.isBlockCompressed(vcfFile.toPath());
+        } catch (IOException e) {
+            log.warning("Unable to read " + vcfFile.getName() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Return true if the VCF has an index that supports queries
+     *
+     * @return
+     */
+    private boolean isIndexed() {
+        try (VCFFileReader vcfFileReader = new VCFFileReader(vcfFile, false)) {
+            return vcfFileReader.isQueryable();
+        }
+    }
+
+    /**
+     * Return the contigs to query. Contigs are taken from the header's sequence dictionary, longest first so that the
+     * largest contigs do not end up being started last, followed by any contig in the index the header does not
+     * declare.
+     *
+     * @return
+     */
+    private List<String> getContigs() {
+        Set<String> contigs = new LinkedHashSet<>();
+
+        SAMSequenceDictionary dictionary = VCFFileReader.getSequenceDictionary(vcfFile);
+        if (dictionary != null) {
+            dictionary.getSequences().stream()
+                    .sorted(Comparator.comparingInt(SAMSequenceRecord::getSequenceLength).reversed())
+                    .map(SAMSequenceRecord::getSequenceName)
+                    .forEach(contigs::add);
+        }
+
+        try (AbstractFeatureReader<VariantContext, ?> reader = AbstractFeatureReader
+                .getFeatureReader(vcfFile.getAbsolutePath(), new VCFCodec(), true)) {
+            contigs.addAll(reader.getSequenceNames());
+        } catch (IOException e) {
+            log.warning("Unable to read the contig names in the index of " + vcfFile.getName() + ": " + e.getMessage());
+        }
+
+        return new ArrayList<>(contigs);
+    }
+
+    /**
+     * Hand a batch of records to the worker threads
+     *
+     * @param pool
+     * @param task
+     * @param firstOrdinal position in the file of the first record in the batch
+     */
+    private void submit(ThreadPoolExecutor pool, VcfDetailsTask task, long firstOrdinal) {
+        task.setFirstOrdinal(firstOrdinal);
+        if (sortOrderChecker != null) {
+            task.setSortOrderChunk(sortOrderChecker.createChunk(firstOrdinal));
+        }
+        pool.execute(task);
+        peakQueueDepth = Math.max(peakQueueDepth, pool.getQueue().size());
+    }
+
+    /**
+     * Create the pool that runs the helpers counting the sample columns of wide records. A helper is only useful if it
+     * starts straight away, so it runs on an idle helper thread or is dropped, and the record's worker counts whatever
+     * ranges no helper has claimed. The helpers never wait behind the batches.
+     *
+     * @return
+     */
+    private ThreadPoolExecutor createSampleColumnHelperPool() {
+        return new ThreadPoolExecutor(0, Math.max(1, numberOfThreads - 1), 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * Create a task that analyses the records and is configured from the command line
+     *
+     * @param variantContexts
+     * @param details
+     * @return
+     */
+    private VcfDetailsTask createTask(Iterator<VariantContext> variantContexts, VcfDetailsModel details) {
+        return createTask(variantContexts, details, -1);
+    }
+
+    /**
+     * Create a task that analyses the records and is configured from the command line
+     *
+     * @param variantContexts
+     * @param details
+     * @param contig the only contig in the records, or -1 if they may be on any contig
+     * @return
+     */
+    private VcfDetailsTask createTask(Iterator<VariantContext> variantContexts, VcfDetailsModel details, int contig) {
+        VcfDetailsTask vdr = new VcfDetailsTask(variantContexts, details, contigIndex);
+        vdr.setPrintStatusUpdates(commandLine.hasOption("showUpdates"));
+        vdr.setPrintMultiAllelicAlternates(commandLine.hasOption("showMultiallelicAlts"));
+        DuplicateVariantChecker duplicateVariantChecker = taskDuplicateVariantCheckers.apply(contig);
+        vdr.setDuplicateVariantChecker(duplicateVariantChecker);
+        if (releaseTaskDuplicateIndexes) {
+            vdr.setCompletionCallback(() -> duplicateVariantChecker.getDuplicateVariantIndex().release());
+        }
+        vdr.setVariantKeyExtractor(createVariantKeyExtractor());
+        vdr.setSampleGenotypeCounter(sampleGenotypeCounter);
+        if (sampleColumnHelpers != null) {
+            vdr.setSampleColumnHelpers(sampleColumnHelpers, numberOfThreads);
+        }
+        return vdr;
+    }
 
-        // Wait for the tasks to complete
-        try {
-            pool.awaitTermination(2, TimeUnit.HOURS);
-        } catch (InterruptedException e) {
-            log.severe("Two hour time limit reached; shutting down.");
+    /**
+     * Create a task that analyses the records of a BGZF range. The number of records before a range is not known.
+     *
+     * @param variantContexts
+     * @param details
+     * @param sortOrderChunk the range's chunk of the sort order check, or null if the order is not checked
+     * @return
+     */
+    private VcfDetailsTask createRangeTask(Iterator<VariantContext> variantContexts, VcfDetailsModel details,
+            SortOrderChecker.Chunk sortOrderChunk) {
+        VcfDetailsTask task = createTask(variantContexts, details);
+        task.setSortOrderChunk(sortOrderChunk);
+        if (sampleColumnHelpers != null) {
+            // Range tasks run in a fork/join pool, where idle workers steal forked helpers
+            task.setSampleColumnHelpers(helper -> ForkJoinTask.adapt(helper).fork(), numberOfThreads);
         }
+        return task;
+    }
 
-        stopWatch.stop();
-        duration = Duration.ofMillis(stopWatch.getTime());
+    /**
+     * Return a batch size that keeps the amount of work per batch roughly constant. Sites-only VCFs get large batches
+     * because each record is cheap to analyse, while VCFs with many samples get smaller batches so that a full queue
+     * does not hold too many genotypes in memory.
+     *
+     * @param numberOfSamples
+     * @return
+     */
+    private static int getAdaptiveBatchSize(int numberOfSamples) {
+        return Math.max(1, Math.min(MAX_BATCH_SIZE, GENOTYPES_PER_BATCH / Math.max(1, numberOfSamples)));
+    }
 
-        if (!"false".equals(commandLine.getOptionValue("summary"))) {
-            printSummary(details);
+    /**
+     * Create a fixed size thread pool whose work queue is bounded. When the queue is full the reader either waits for
+     * a worker to take a task off the queue, or runs the task itself, so the number of records held in memory does not
+     * grow with the size of the file.
+     *
+     * @return
+     */
+    private ThreadPoolExecutor createThreadPool() {
+        RejectedExecutionHandler queueFullPolicy;
+        if (QUEUE_FULL_POLICY_CALLER_RUNS.equals(commandLine.getOptionValue("queueFullPolicy"))) {
+            queueFullPolicy = new ThreadPoolExecutor.CallerRunsPolicy();
+        } else {
+            queueFullPolicy = new BlockWhenQueueFullPolicy();
         }
-    }
 
+        return new ThreadPoolExecutor(numberOfThreads, numberOfThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueDepth), queueFullPolicy);
+    }
 
     /**
      * Verify command line parameters
@@ -138,10 +944,37 @@ public class VcfDetails {
      */
     private void verifyParameters() {
 
-        // check if the file exists)
-        vcfFile = new File(commandLine.getOptionValue("vcfFile"));
-        if (!vcfFile.exists()) {
-            log.severe("File not found: " + vcfFile.getName());
+        // Merging snapshots reads the snapshots instead of a VCF
+        if (commandLine.hasOption("merge")) {
+            mergedSnapshotFiles = new ArrayList<>();
+            for (String name : commandLine.getOptionValue("merge").split(",")) {
+                File file = new File(name.trim());
+                if (!file.isFile()) {
+                    log.severe("File not found: " + file);
+                    System.exit(1);
+                }
+                mergedSnapshotFiles.add(file);
+            }
+            if (commandLine.hasOption("vcfFile")) {
+                log.warning("vcfFile is ignored when merging snapshots");
+            }
+        } else if (!commandLine.hasOption("vcfFile")) {
+            log.severe("vcfFile parameter is required unless snapshots are being merged");
+            System.exit(1);
+        } else {
+            // check if the file exists)
+            vcfFile = new File(commandLine.getOptionValue("vcfFile"));
+            if (!vcfFile.exists()) {
+                log.severe("File not found: " + vcfFile.getName());
+                System.exit(1);
+            }
+        }
+
+        // Set where the results are saved for merging with those of other shards
+        if (commandLine.hasOption("snapshot")) {
+            snapshotFile = new File(commandLine.getOptionValue("snapshot"));
+        } else if (commandLine.hasOption("exportKeys")) {
+            log.severe("exportKeys parameter requires snapshot");
             System.exit(1);
         }
 
@@ -161,6 +994,195 @@ public class VcfDetails {
         } else {
             numberOfThreads = DEFAULT_NUMBER_OF_THREADS;
         }
+
+        // Set the size of the queue between the reader and the worker threads
+        if (commandLine.hasOption("queueDepth")) {
+            String digits = commandLine.getOptionValue("queueDepth");
+            if (!NumberUtils.isDigits(digits) || NumberUtils.toInt(digits) < 1) {
+                log.severe("queueDepth parameter must be a positive number");
+                System.exit(1);
+            }
+            queueDepth = NumberUtils.toInt(digits);
+        } else {
+            queueDepth = DEFAULT_QUEUE_DEPTH;
+        }
+
+        // Set the number of records given to a worker at a time. Zero means work it out from the VCF header.
+        if (commandLine.hasOption("batchSize")) {
+            String digits = commandLine.getOptionValue("batchSize");
+            if (!NumberUtils.isDigits(digits) || NumberUtils.toInt(digits) < 1) {
+                log.severe("batchSize parameter must be a positive number");
+                System.exit(1);
+            }
+            batchSize = NumberUtils.toInt(digits);
+        } else {
+            batchSize = 0;
+        }
+
+        // Size an off heap duplicate index. Zero means use the heap.
+        if (commandLine.hasOption("expectedVariants")) {
+            String digits = commandLine.getOptionValue("expectedVariants");
+            if (!NumberUtils.isDigits(digits) || NumberUtils.toLong(digits) < 1) {
+                log.severe("expectedVariants parameter must be a positive number");
+                System.exit(1);
+            }
+            expectedVariants = NumberUtils.toLong(digits);
+        }
+
+        if (commandLine.hasOption("indexDir")) {
+            if (!commandLine.hasOption("expectedVariants")) {
+                log.severe("indexDir parameter requires expectedVariants");
+                System.exit(1);
+            }
+            indexDirectory = new File(commandLine.getOptionValue("indexDir"));
+            if (!indexDirectory.isDirectory()) {
+                log.severe("Directory not found: " + indexDirectory);
+                System.exit(1);
+            }
+        }
+
+        // Set what makes two records duplicates
+        uniqueBy = commandLine.getOptionValue("uniqueBy", UNIQUE_BY_ALLELES);
+        if (!UNIQUE_BY_ID.equals(uniqueBy) && !UNIQUE_BY_POSITION.equals(uniqueBy) && !UNIQUE_BY_ALLELES.equals(uniqueBy)
+                && !UNIQUE_BY_GENOTYPES.equals(uniqueBy)) {
+            log.severe("uniqueBy parameter must be " + UNIQUE_BY_ID + ", " + UNIQUE_BY_POSITION + ", "
+                    + UNIQUE_BY_ALLELES + " or " + UNIQUE_BY_GENOTYPES);
+            System.exit(1);
+        }
+        if (UNIQUE_BY_ID.equals(uniqueBy) && commandLine.hasOption("twoPass")) {
+            log.severe("twoPass cannot be used with uniqueBy " + UNIQUE_BY_ID);
+            System.exit(1);
+        }
+
+        // Set the reference used to normalize alleles
+        if (commandLine.hasOption("reference")) {
+            referenceFile = new File(commandLine.getOptionValue("reference"));
+            if (!referenceFile.exists()) {
+                log.severe("File not found: " + referenceFile.getName());
+                System.exit(1);
+            }
+            if (!new File(referenceFile.getPath() + ".fai").exists()) {
+                log.severe("Reference index not found: " + referenceFile.getName() + ".fai (create it with samtools faidx)");
+                System.exit(1);
+            }
+        }
+
+        // Set the window size of the variant density profile
+        if (commandLine.hasOption("densityWindow")) {
+            String digits = commandLine.getOptionValue("densityWindow");
+            if (!NumberUtils.isDigits(digits) || NumberUtils.toInt(digits) < 1) {
+                log.severe("densityWindow parameter must be a positive number");
+                System.exit(1);
+            }
+            if (!commandLine.hasOption("densityFile")) {
+                log.severe("densityWindow parameter requires densityFile");
+                System.exit(1);
+            }
+            densityWindowSize = NumberUtils.toInt(digits);
+            densityFile = new File(commandLine.getOptionValue("densityFile"));
+        } else if (commandLine.hasOption("densityFile") && mergedSnapshotFiles == null) {
+            log.severe("densityFile parameter requires densityWindow");
+            System.exit(1);
+        } else if (commandLine.hasOption("densityFile")) {
+            // The window size of merged snapshots is the one they were made with
+            densityFile = new File(commandLine.getOptionValue("densityFile"));
+        }
+
+        // Set where per sample genotype counts are written, and which samples to count
+        if (commandLine.hasOption("sampleStats")) {
+            sampleStatsFile = new File(commandLine.getOptionValue("sampleStats"));
+            if (commandLine.hasOption("samples")) {
+                selectedSamples = readSampleList(commandLine.getOptionValue("samples"));
+            }
+        } else if (commandLine.hasOption("samples") || commandLine.hasOption("splitSamples")) {
+            log.severe("samples and splitSamples parameters require sampleStats");
+            System.exit(1);
+        }
+
+        // Set the directory holding the variants of earlier files
+        if (commandLine.hasOption("history")) {
+            historyDirectory = new File(commandLine.getOptionValue("history"));
+            String mode = commandLine.getOptionValue("historyMode", HISTORY_MODE_READ);
+            if (!HISTORY_MODE_READ.equals(mode) && !HISTORY_MODE_READ_WRITE.equals(mode)) {
+                log.severe("historyMode parameter must be " + HISTORY_MODE_READ + " or " + HISTORY_MODE_READ_WRITE);
+                System.exit(1);
+            }
+            historyWritable = HISTORY_MODE_READ_WRITE.equals(mode);
+        } else if (commandLine.hasOption("historyMode") || commandLine.hasOption("compactHistory")) {
+            log.severe("historyMode and compactHistory parameters require history");
+            System.exit(1);
+        }
+        if (commandLine.hasOption("compactHistory") && !historyWritable) {
+            log.severe("compactHistory parameter requires historyMode " + HISTORY_MODE_READ_WRITE);
+            System.exit(1);
+        }
+
+        if (commandLine.hasOption("twoPass") && commandLine.hasOption("externalSort")) {
+            log.severe("twoPass and externalSort cannot be used together");
+            System.exit(1);
+        }
+
+        // Set the number of keys each thread sorts in memory before writing them to disk
+        if (commandLine.hasOption("runSize")) {
+            String digits = commandLine.getOptionValue("runSize");
+            if (!NumberUtils.isDigits(digits) || NumberUtils.toInt(digits) < 1) {
+                log.severe("runSize parameter must be a positive number");
+                System.exit(1);
+            }
+            runSize = NumberUtils.toInt(digits);
+        } else {
+            runSize = DEFAULT_RUN_SIZE;
+        }
+
+        tempDirectory = new File(commandLine.getOptionValue("tempDir", System.getProperty("java.io.tmpdir")));
+        if (!tempDirectory.isDirectory()) {
+            log.severe("Directory not found: " + tempDirectory);
+            System.exit(1);
+        }
+
+        if (commandLine.hasOption("queueFullPolicy")) {
+            String policy = commandLine.getOptionValue("queueFullPolicy");
+            if (!QUEUE_FULL_POLICY_BLOCK.equals(policy) && !QUEUE_FULL_POLICY_CALLER_RUNS.equals(policy)) {
+                log.severe("queueFullPolicy parameter must be " + QUEUE_FULL_POLICY_BLOCK + " or "
+                        + QUEUE_FULL_POLICY_CALLER_RUNS);
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Return the samples named in a file, one per line, or in a comma separated list if there is no such file
+     *
+     * @param samples
+     * @return
+     */
+    private static Set<String> readSampleList(String samples) {
+        File file = new File(samples);
+        Set<String> sampleNames = new LinkedHashSet<>();
+        if (file.isFile()) {
+            try {
+                for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                    if (!line.trim().isEmpty()) {
+                        sampleNames.add(line.trim());
+                    }
+                }
+            } catch (IOException e) {
+                log.severe("Unable to read " + file + ": " + e.getMessage());
+                System.exit(1);
+            }
+        } else {
+            for (String sample : samples.split(",")) {
+                if (!sample.trim().isEmpty()) {
+                    sampleNames.add(sample.trim());
+                }
+            }
+        }
+
+        if (sampleNames.isEmpty()) {
+            log.severe("samples parameter does not name any samples");
+            System.exit(1);
+        }
+        return sampleNames;
     }
 
     /**
@@ -200,8 +1222,7 @@ public class VcfDetails {
                 .argName("vcfFile")
                 .longOpt("vcfFile")
                 .hasArg()
-                .desc("VCF File")
-                .required()
+                .desc("VCF File (required unless merging snapshots)")
                 .build());
 
         options.addOption(Option.builder("h")
@@ -242,42 +1263,410 @@ public class VcfDetails {
                 .desc("Print all multiallelic alternates (default=false)")
                 .build());
 
+        options.addOption(Option.builder("q")
+                .argName("queueDepth")
+                .longOpt("queueDepth")
+                .hasArg()
+                .desc("Maximum number of batches waiting for a worker thread (default=" + DEFAULT_QUEUE_DEPTH + ")")
+                .build());
+
+        options.addOption(Option.builder("b")
+                .argName("batchSize")
+                .longOpt("batchSize")
+                .hasArg()
+                .desc("Number of records given to a worker thread at a time (default=based on the number of samples, at most "
+                        + MAX_BATCH_SIZE + ")")
+                .build());
+
+        options.addOption(Option.builder("p")
+                .argName("queueFullPolicy")
+                .longOpt("queueFullPolicy")
+                .hasArg()
+                .desc("What the reader does when the queue is full: " + QUEUE_FULL_POLICY_BLOCK + " waits for a worker, "
+                        + QUEUE_FULL_POLICY_CALLER_RUNS + " processes the record itself (default="
+                        + QUEUE_FULL_POLICY_BLOCK + ")")
+                .build());
+
+        options.addOption(Option.builder("c")
+                .argName("byContig")
+                .longOpt("byContig")
+                .desc("Have each thread query a different contig of an indexed VCF (default=false)")
+                .build());
+
+        options.addOption(Option.builder("z")
+                .argName("splitBgzf")
+                .longOpt("splitBgzf")
+                .desc("Split a block compressed VCF into ranges that are decoded by different threads (default=false)")
+                .build());
+
+        options.addOption(Option.builder("w")
+                .argName("decodeInWorkers")
+                .longOpt("decodeInWorkers")
+                .desc("Only split the VCF into lines on the reader thread and decode the lines on the worker threads "
+                        + "(default=false)")
+                .build());
+
+        options.addOption(Option.builder("o")
+                .argName("sortedInput")
+                .longOpt("sortedInput")
+                .desc("The VCF is sorted, so only keep the variants at the current position when looking for duplicates "
+                        + "(default=false)")
+                .build());
+
+        options.addOption(Option.builder("e")
+                .argName("expectedVariants")
+                .longOpt("expectedVariants")
+                .hasArg()
+                .desc("Keep the duplicate index off the heap, sized for this many distinct variants. With twoPass, size "
+                        + "the Bloom filter instead.")
+                .build());
+
+        options.addOption(Option.builder("i")
+                .argName("indexDir")
+                .longOpt("indexDir")
+                .hasArg()
+                .desc("Memory map the off heap duplicate index to files in this directory (requires expectedVariants)")
+                .build());
+
+        options.addOption(Option.builder("k")
+                .argName("twoPass")
+                .longOpt("twoPass")
+                .desc("Find candidate duplicates with a Bloom filter, then re-read only the candidates to check them "
+                        + "exactly (default=false)")
+                .build());
+
+        options.addOption(Option.builder("x")
+                .argName("externalSort")
+                .longOpt("externalSort")
+                .desc("Find duplicates by sorting the variants on disk, for VCFs with more variants than fit in memory "
+                        + "(default=false)")
+                .build());
+
+        options.addOption(Option.builder("r")
+                .argName("runSize")
+                .longOpt("runSize")
+                .hasArg()
+                .desc("Number of variants each thread sorts in memory before writing them to disk (default="
+                        + DEFAULT_RUN_SIZE + ")")
+                .build());
+
+        options.addOption(Option.builder("g")
+                .argName("tempDir")
+                .longOpt("tempDir")
+                .hasArg()
+                .desc("Directory for the files written by externalSort (default=java.io.tmpdir)")
+                .build());
+
+        options.addOption(Option.builder("n")
+                .argName("uniqueBy")
+                .longOpt("uniqueBy")
+                .hasArg()
+                .desc("What must be unique: " + UNIQUE_BY_ID + ", " + UNIQUE_BY_POSITION + ", " + UNIQUE_BY_ALLELES
+                        + " or " + UNIQUE_BY_GENOTYPES + " (default=" + UNIQUE_BY_ALLELES + ")")
+                .build());
+
+        options.addOption(Option.builder("l")
+                .argName("reference")
+                .longOpt("reference")
+                .hasArg()
+                .desc("Indexed FASTA file used to left align and trim alleles before looking for duplicates")
+                .build());
+
+        options.addOption(Option.builder("j")
+                .argName("partitionByContig")
+                .longOpt("partitionByContig")
+                .desc("The VCF's records are grouped by contig, so keep a duplicate index per contig and free it when "
+                        + "the contig is done (default=false)")
+                .build());
+
+        options.addOption(Option.builder("y")
+                .argName("history")
+                .longOpt("history")
+                .hasArg()
+                .desc("Directory of the variants of earlier VCFs; records are also checked against it")
+                .build());
+
+        options.addOption(Option.builder("v")
+                .argName("historyMode")
+                .longOpt("historyMode")
+                .hasArg()
+                .desc("Whether the history is only read or new variants are added to it: " + HISTORY_MODE_READ + " or "
+                        + HISTORY_MODE_READ_WRITE + " (default=" + HISTORY_MODE_READ + ")")
+                .build());
+
+        options.addOption(Option.builder("a")
+                .argName("compactHistory")
+                .longOpt("compactHistory")
+                .desc("Merge the history into one file after adding this VCF's variants (default=false)")
+                .build());
+
+        options.addOption(Option.builder("D")
+                .argName("densityWindow")
+                .longOpt("densityWindow")
+                .hasArg()
+                .desc("Count the records in windows of this many bases along each contig, for example 100000")
+                .build());
+
+        options.addOption(Option.builder("E")
+                .argName("densityFile")
+                .longOpt("densityFile")
+                .hasArg()
+                .desc("bedGraph file the densityWindow counts are written to")
+                .build());
+
+        options.addOption(Option.builder("S")
+                .argName("sampleStats")
+                .longOpt("sampleStats")
+                .hasArg()
+                .desc("Tab separated file the hom ref, het, hom alt and missing genotype counts of each sample are "
+                        + "written to")
+                .build());
+
+        options.addOption(Option.builder("L")
+                .argName("samples")
+                .longOpt("samples")
+                .hasArg()
+                .desc("Samples to count for sampleStats: a comma separated list, or a file with one sample per line "
+                        + "(default=all)")
+                .build());
+
+        options.addOption(Option.builder("P")
+                .argName("splitSamples")
+                .longOpt("splitSamples")
+                .desc("For sampleStats, split the sample columns of records with thousands of samples between threads "
+                        + "(default=false)")
+                .build());
+
+        options.addOption(Option.builder("N")
+                .argName("snapshot")
+                .longOpt("snapshot")
+                .hasArg()
+                .desc("File the results are saved to, so the results of runs over different shards of the input can "
+                        + "be merged with merge")
+                .build());
+
+        options.addOption(Option.builder("K")
+                .argName("exportKeys")
+                .longOpt("exportKeys")
+                .desc("Save the key of every distinct variant in the snapshot, so duplicates between shards are found "
+                        + "when snapshots are merged (default=false)")
+                .build());
+
+        options.addOption(Option.builder("M")
+                .argName("merge")
+                .longOpt("merge")
+                .hasArg()
+                .desc("Comma separated list of snapshots to merge into one summary instead of reading a VCF. "
+                        + "densityFile, sampleStats and snapshot write the merged results.")
+                .build());
+
+        options.addOption(Option.builder("C")
+                .argName("checkSorted")
+                .longOpt("checkSorted")
+                .desc("Report whether the VCF is sorted, the first out of order record, and whether the contigs are "
+                        + "in the order of the header (default=false)")
+                .build());
+
         return options;
     }
 
+    /**
+     * Create the per sample genotype counter for the samples in the header, or the selected ones
+     *
+     * @return
+     */
+    private SampleGenotypeCounter createSampleGenotypeCounter() {
+        List<String> headerSamples;
+        try (VCFFileReader vcfFileReader = new VCFFileReader(vcfFile, false)) {
+            headerSamples = vcfFileReader.getFileHeader().getGenotypeSamples();
+        }
+
+        if (selectedSamples != null) {
+            Set<String> missingSamples = new LinkedHashSet<>(selectedSamples);
+            missingSamples.removeAll(headerSamples);
+            if (!missingSamples.isEmpty()) {
+                log.severe("Samples not found in " + vcfFile.getName() + ": " + String.join(", ", missingSamples));
+                System.exit(1);
+            }
+        }
+        if (headerSamples.isEmpty()) {
+            log.warning(vcfFile.getName() + " has no samples; no sample statistics will be written");
+        }
+
+        SampleGenotypeCounter counter = new SampleGenotypeCounter(headerSamples, selectedSamples);
+        log.fine("Counting the genotypes of " + counter.getSampleNames().size() + " of " + headerSamples.size()
+                + " samples");
+        return counter;
+    }
+
+    /**
+     * Write the genotype counts of each sample as a tab separated file
+     *
+     * @param sampleNames
+     * @param counts
+     */
+    private void writeSampleStats(List<String> sampleNames, SampleGenotypeCounts counts) {
+        try (Writer writer = Files.newBufferedWriter(sampleStatsFile.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(String.join(DELIMETER, "sample", "homRef", "het", "homAlt", "missing") + "\n");
+            for (int sample = 0; sample < sampleNames.size(); sample++) {
+                writer.write(sampleNames.get(sample));
+                for (int category = 0; category < SampleGenotypeCounts.NUMBER_OF_CATEGORIES; category++) {
+                    writer.write(DELIMETER + (counts == null ? 0 : counts.getCount(sample, category)));
+                }
+                writer.write("\n");
+            }
+        } catch (IOException e) {
+            log.severe("Unable to write " + sampleStatsFile + ": " + e.getMessage());
+            System.exit(1);
+        }
+        log.info("Wrote the genotype counts of " + sampleNames.size() + " samples to " + sampleStatsFile);
+    }
+
+    /**
+     * Write the number of records in each window as a bedGraph
+     *
+     * @param densityProfile
+     */
+    private void writeDensityProfile(DensityProfile densityProfile) {
+        try (Writer writer = Files.newBufferedWriter(densityFile.toPath(), StandardCharsets.UTF_8)) {
+            densityProfile.writeBedGraph(writer);
+        } catch (IOException e) {
+            log.severe("Unable to write " + densityFile + ": " + e.getMessage());
+            System.exit(1);
+        }
+        log.info("Wrote the variant density in " + densityProfile.getWindowSize() + " bp windows to " + densityFile);
+    }
+
     /**
      * Print summary showing how long it took to run and how many duplicates were found.
-     * @param details
      *
-     * @param duration
-     * @param duplicates
+     * @param totals
      */
-    private void printSummary(VcfDetailsModel details) {
+    private void printSummary(VcfDetailsAccumulator totals) {
         log.info(String.format("Time: %dm.%ds.%dms", duration.toMinutesPart(), duration.toSecondsPart(),
                 duration.toMillisPart()));
-        log.info("Number of records: " + details.getNumberOfRecords());
-        log.info("Number of duplicates: " + details.getNumberOfDuplicateGenotypes());
-        log.info("Number of multiallelic alts: " + details.getNumberOfVariantsWithMultiAllelicAlternates());
-        log.info("Chromsome-variant counts: \n" + getChromosomeVariantCounts(details));
+        log.info("Number of records: " + totals.getNumberOfRecords());
+        log.info("Number of duplicates: " + totals.getNumberOfDuplicateGenotypes());
+        log.info("Number of distinct variants: "
+                + (totals.getNumberOfRecords() - totals.getNumberOfDuplicateGenotypes()));
+        if (variantHistory != null || totals.getNumberOfPreviouslySeenRecords() > 0) {
+            log.info("Number of records seen in earlier files: " + totals.getNumberOfPreviouslySeenRecords());
+            if (variantHistory != null && historyWritable) {
+                log.info("Number of variants added to history: " + numberOfVariantsAddedToHistory);
+            }
+        }
+        if (contigPartitionedIndex != null) {
+            log.fine("Released the duplicate index of " + contigPartitionedIndex.getNumberOfReleasedPartitions()
+                    + " contigs");
+        }
+        if (contigPartitionedIndex != null && !contigPartitionedIndex.isGroupedByContig()) {
+            log.warning("Input is not grouped by contig (" + contigPartitionedIndex.getFirstRepeatedContig()
+                    + " appears again after another contig); duplicates may have been missed");
+        }
+        for (SortedDuplicateVariantIndex sortedIndex : sortedDuplicateVariantIndexes) {
+            if (!sortedIndex.isSorted()) {
+                log.warning("Input is not sorted (" + sortedIndex.describeFirstOutOfOrderRecord(contigIndex)
+                        + "); duplicates of records before that point may have been missed");
+            }
+        }
+        if (sortOrderChecker != null) {
+            printSortOrder();
+        }
+        log.info("Number of multiallelic alts: " + totals.getNumberOfVariantsWithMultiAllelicAlternates());
+        if (batchSize > 0) {
+            log.info("Peak queue depth: " + peakQueueDepth + " of " + queueDepth + " batches of " + batchSize + " records");
+        }
+        log.info("Chromsome-variant counts: \n" + getChromosomeVariantCounts(totals));
+        log.info("Variant types by contig: \n" + getVariantTypeCounts(totals));
+        log.info("QUAL histogram: \n" + totals.getQualityHistogram().format(DELIMETER));
+        log.info("INFO/DP histogram: \n" + totals.getDepthHistogram().format(DELIMETER));
+        log.info("INFO/AF histogram: \n" + totals.getAlleleFrequencyHistogram().format(DELIMETER));
+        log.info("INFO/AC histogram: \n" + totals.getAlleleCountHistogram().format(DELIMETER));
     }
 
-    private String getChromosomeVariantCounts(VcfDetailsModel details) {
+    /**
+     * Print whether the VCF is sorted and, if it is, whether its contigs are in the order of the header
+     */
+    private void printSortOrder() {
+        if (!sortOrderChecker.isSorted()) {
+            log.info("Sorted: no (" + sortOrderChecker.describeFirstOutOfOrderRecord() + ")");
+        } else if (!sortOrderChecker.isInDictionaryOrder()) {
+            log.info("Sorted: yes, but contigs are not in header order ("
+                    + sortOrderChecker.describeFirstOutOfDictionaryOrderContig() + ")");
+        } else {
+            log.info("Sorted: yes, in header contig order");
+        }
+    }
+
+    /**
+     * Return a table of the number of alternate alleles of each type, transitions, transversions and Ti/Tv, for the
+     * whole file and for each contig with records
+     *
+     * @param totals
+     * @return
+     */
+    private String getVariantTypeCounts(VcfDetailsAccumulator totals) {
+        StringBuilder builder = new StringBuilder("contig");
+        for (int type = 0; type < VariantType.NUMBER_OF_TYPES; type++) {
+            builder.append(DELIMETER).append(VariantType.getName(type));
+        }
+        builder.append(DELIMETER).append("Ti").append(DELIMETER).append("Tv").append(DELIMETER).append("Ti/Tv");
+
+        builder.append("\nall");
+        for (int type = 0; type < VariantType.NUMBER_OF_TYPES; type++) {
+            builder.append(DELIMETER).append(totals.getVariantTypeCount(type));
+        }
+        appendTransitions(builder, totals.getTransitions(), totals.getTransversions());
+
+        for (int contig = 0; contig < totals.getNumberOfContigs(); contig++) {
+            if (totals.getContigVariantCount(contig) == 0) {
+                continue;
+            }
+            builder.append("\n").append(contigIndex.getName(contig));
+            for (int type = 0; type < VariantType.NUMBER_OF_TYPES; type++) {
+                builder.append(DELIMETER).append(totals.getVariantTypeCount(contig, type));
+            }
+            appendTransitions(builder, totals.getTransitions(contig), totals.getTransversions(contig));
+        }
+        return builder.toString();
+    }
+
+    private static void appendTransitions(StringBuilder builder, long transitions, long transversions) {
+        builder.append(DELIMETER).append(transitions).append(DELIMETER).append(transversions).append(DELIMETER)
+                .append(transversions == 0 ? "NA" : String.format("%.3f", (double) transitions / transversions));
+    }
+
+    private String getChromosomeVariantCounts(VcfDetailsAccumulator totals) {
         StringBuffer buffer = new StringBuffer();
 
-        // Sort the chromosomes so they are always displayed in the same order
-        buffer.append(String.join(DELIMETER,
-                details.getChromosomeCounts().keySet()
-                .stream()
-                .sorted()
-                .collect(Collectors.toList())));
+        // The contigs are in the order of the sequence dictionary, so they are always displayed in the same order
+        Map<String, Long> contigCounts = totals.getContigCounts();
+        buffer.append(String.join(DELIMETER, contigCounts.keySet()));
         buffer.append("\n");
         buffer.append(String.join(DELIMETER,
-                details.getChromosomeCounts().keySet()
+                contigCounts.values()
                 .stream()
-                .sorted()
-                .map(x -> details.getChromosomeCounts().get(x))
                 .map(String::valueOf)
                 .collect(Collectors.toList())));
         return buffer.toString();
     }
+
+    /**
+     * Makes the reader wait for space in the queue instead of rejecting the task
+     */
+    private static class BlockWhenQueueFullPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Thread pool has been shut down");
+            }
+
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for space in the queue", e);
+            }
+        }
+    }
 }
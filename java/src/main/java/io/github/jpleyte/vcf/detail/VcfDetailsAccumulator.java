@@ -0,0 +1,400 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The counts of one worker thread. Only the owning thread changes an accumulator, so the counts are plain fields with
+ * no locking or atomic updates on the per record path; VcfDetailsModel merges the accumulators of every thread when
+ * the results are wanted. A merge made while workers are still running is a progress snapshot and may be slightly
+ * behind. An accumulator can be written to a snapshot and read back, so that runs over different shards of the input
+ * can be merged.
+ *
+ * @author j
+ *
+ */
+public class VcfDetailsAccumulator {
+    // QUAL, DP and AC span several orders of magnitude, so they get power of two buckets up to 2^30
+    private static final int LOG_BUCKETS = 32;
+    private static final int ALLELE_FREQUENCY_BUCKETS = 20;
+
+    private final ContigIndex contigIndex;
+
+    private long numberOfRecords;
+    private long numberOfDuplicateGenotypes;
+    private long numberOfVariantsWithMultiAllelicAlternates;
+    private long numberOfPreviouslySeenRecords;
+    // Indexed by the contig's ContigIndex index
+    private long[] contigCounts;
+    // Alternate alleles of each type on each contig, at contig * VariantType.NUMBER_OF_TYPES + type
+    private long[] variantTypeCounts;
+    private long[] transitions;
+    private long[] transversions;
+    private final FixedBucketHistogram qualityHistogram = FixedBucketHistogram.log2(LOG_BUCKETS);
+    private final FixedBucketHistogram depthHistogram = FixedBucketHistogram.log2(LOG_BUCKETS);
+    private final FixedBucketHistogram alleleFrequencyHistogram = FixedBucketHistogram.linear(0, 1,
+            ALLELE_FREQUENCY_BUCKETS);
+    private final FixedBucketHistogram alleleCountHistogram = FixedBucketHistogram.log2(LOG_BUCKETS);
+    // Null unless a density profile was asked for
+    private final DensityProfile densityProfile;
+    // Null unless per sample genotype counts were asked for
+    private final SampleGenotypeCounts sampleGenotypeCounts;
+
+    /**
+     * Constructor
+     *
+     * @param contigIndex the contigs of the VCF
+     * @param densityWindowSize the window size of the density profile, or 0 for no profile
+     * @param numberOfSamples the number of samples to count genotypes of, or 0 for no genotype counts
+     */
+    public VcfDetailsAccumulator(ContigIndex contigIndex, int densityWindowSize, int numberOfSamples) {
+        this.contigIndex = contigIndex;
+        this.densityProfile = densityWindowSize > 0 ? new DensityProfile(contigIndex, densityWindowSize) : null;
+        this.sampleGenotypeCounts = numberOfSamples > 0 ? new SampleGenotypeCounts(numberOfSamples) : null;
+        this.contigCounts = new long[contigIndex.size()];
+        this.variantTypeCounts = new long[contigIndex.size() * VariantType.NUMBER_OF_TYPES];
+        this.transitions = new long[contigIndex.size()];
+        this.transversions = new long[contigIndex.size()];
+    }
+
+    /**
+     * Add another accumulator's counts to this one's
+     *
+     * @param other
+     */
+    public void merge(VcfDetailsAccumulator other) {
+        merge(other, null);
+    }
+
+    /**
+     * Add the counts of an accumulator whose contigs have different indexes, such as one read from a snapshot, to this
+     * one's
+     *
+     * @param other
+     * @param contigMap this accumulator's index of each of the other one's contigs, or null if they are the same
+     */
+    public void merge(VcfDetailsAccumulator other, int[] contigMap) {
+        numberOfRecords += other.numberOfRecords;
+        numberOfDuplicateGenotypes += other.numberOfDuplicateGenotypes;
+        numberOfVariantsWithMultiAllelicAlternates += other.numberOfVariantsWithMultiAllelicAlternates;
+        numberOfPreviouslySeenRecords += other.numberOfPreviouslySeenRecords;
+
+        for (int otherContig = 0; otherContig < other.contigCounts.length; otherContig++) {
+            // The arrays have room for more contigs than there are, and a contig without records has no counts
+            if (other.contigCounts[otherContig] == 0) {
+                continue;
+            }
+            int contig = contigMap == null ? otherContig : contigMap[otherContig];
+            ensureContig(contig);
+            contigCounts[contig] += other.contigCounts[otherContig];
+            for (int type = 0; type < VariantType.NUMBER_OF_TYPES; type++) {
+                variantTypeCounts[contig * VariantType.NUMBER_OF_TYPES + type] += other.getVariantTypeCount(otherContig,
+                        type);
+            }
+            transitions[contig] += other.transitions[otherContig];
+            transversions[contig] += other.transversions[otherContig];
+        }
+        qualityHistogram.merge(other.qualityHistogram);
+        depthHistogram.merge(other.depthHistogram);
+        alleleFrequencyHistogram.merge(other.alleleFrequencyHistogram);
+        alleleCountHistogram.merge(other.alleleCountHistogram);
+        if (densityProfile != null) {
+            densityProfile.merge(other.densityProfile, contigMap);
+        }
+        if (sampleGenotypeCounts != null) {
+            sampleGenotypeCounts.merge(other.sampleGenotypeCounts);
+        }
+    }
+
+    /**
+     * Write the counts to a snapshot
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(numberOfRecords);
+        out.writeLong(numberOfDuplicateGenotypes);
+        out.writeLong(numberOfVariantsWithMultiAllelicAlternates);
+        out.writeLong(numberOfPreviouslySeenRecords);
+
+        out.writeInt(contigCounts.length);
+        for (int contig = 0; contig < contigCounts.length; contig++) {
+            out.writeLong(contigCounts[contig]);
+            for (int type = 0; type < VariantType.NUMBER_OF_TYPES; type++) {
+                out.writeLong(getVariantTypeCount(contig, type));
+            }
+            out.writeLong(transitions[contig]);
+            out.writeLong(transversions[contig]);
+        }
+
+        qualityHistogram.write(out);
+        depthHistogram.write(out);
+        alleleFrequencyHistogram.write(out);
+        alleleCountHistogram.write(out);
+        out.writeBoolean(densityProfile != null);
+        if (densityProfile != null) {
+            densityProfile.write(out);
+        }
+        out.writeBoolean(sampleGenotypeCounts != null);
+        if (sampleGenotypeCounts != null) {
+            sampleGenotypeCounts.write(out);
+        }
+    }
+
+    /**
+     * Add counts written by write() to this one's. The contig indexes must be the same as the writer's, and the
+     * accumulator must have been made with the same density window size and number of samples.
+     *
+     * @param in
+     * @throws IOException
+     */
+    public void read(DataInputStream in) throws IOException {
+        numberOfRecords += in.readLong();
+        numberOfDuplicateGenotypes += in.readLong();
+        numberOfVariantsWithMultiAllelicAlternates += in.readLong();
+        numberOfPreviouslySeenRecords += in.readLong();
+
+        int numberOfContigs = in.readInt();
+        ensureContig(numberOfContigs - 1);
+        for (int contig = 0; contig < numberOfContigs; contig++) {
+            contigCounts[contig] += in.readLong();
+            for (int type = 0; type < VariantType.NUMBER_OF_TYPES; type++) {
+                variantTypeCounts[contig * VariantType.NUMBER_OF_TYPES + type] += in.readLong();
+            }
+            transitions[contig] += in.readLong();
+            transversions[contig] += in.readLong();
+        }
+
+        qualityHistogram.read(in);
+        depthHistogram.read(in);
+        alleleFrequencyHistogram.read(in);
+        alleleCountHistogram.read(in);
+        if (in.readBoolean() != (densityProfile != null)) {
+            throw new IOException("Snapshot " + (densityProfile != null ? "has no" : "has a") + " density profile");
+        }
+        if (densityProfile != null) {
+            densityProfile.read(in);
+        }
+        if (in.readBoolean() != (sampleGenotypeCounts != null)) {
+            throw new IOException("Snapshot " + (sampleGenotypeCounts != null ? "has no" : "has") + " genotype counts");
+        }
+        if (sampleGenotypeCounts != null) {
+            sampleGenotypeCounts.read(in);
+        }
+    }
+
+    public long getNumberOfRecords() {
+        return numberOfRecords;
+    }
+
+    public void incrementNumberOfRecords() {
+        numberOfRecords++;
+    }
+
+    public long getNumberOfDuplicateGenotypes() {
+        return numberOfDuplicateGenotypes;
+    }
+
+    public void incrementNumberOfDuplicateGenotypes() {
+        numberOfDuplicateGenotypes++;
+    }
+
+    /**
+     * Count duplicates found when snapshots are merged, between records of different snapshots
+     *
+     * @param duplicates
+     */
+    public void addNumberOfDuplicateGenotypes(long duplicates) {
+        numberOfDuplicateGenotypes += duplicates;
+    }
+
+    public long getNumberOfVariantsWithMultiAllelicAlternates() {
+        return numberOfVariantsWithMultiAllelicAlternates;
+    }
+
+    public void incrementNumberOfVariantsWithMultiAllelicAlternates() {
+        numberOfVariantsWithMultiAllelicAlternates++;
+    }
+
+    public long getNumberOfPreviouslySeenRecords() {
+        return numberOfPreviouslySeenRecords;
+    }
+
+    public void incrementNumberOfPreviouslySeenRecords() {
+        numberOfPreviouslySeenRecords++;
+    }
+
+    /**
+     * Count a record on a contig
+     *
+     * @param contig the contig's index
+     */
+    public void incrementContigVariantCount(int contig) {
+        ensureContig(contig);
+        contigCounts[contig]++;
+    }
+
+    /**
+     * Return the number of contigs the counts have room for. Contigs past the end have no counts.
+     *
+     * @return
+     */
+    public int getNumberOfContigs() {
+        return contigCounts.length;
+    }
+
+    public long getContigVariantCount(int contig) {
+        return contigCounts[contig];
+    }
+
+    /**
+     * Count an alternate allele of a type on a contig. The contig's record must have been counted first.
+     *
+     * @param contig
+     * @param type one of the VariantType constants
+     */
+    public void incrementVariantType(int contig, int type) {
+        variantTypeCounts[contig * VariantType.NUMBER_OF_TYPES + type]++;
+    }
+
+    public void incrementTransitions(int contig) {
+        transitions[contig]++;
+    }
+
+    public void incrementTransversions(int contig) {
+        transversions[contig]++;
+    }
+
+    public long getVariantTypeCount(int contig, int type) {
+        return variantTypeCounts[contig * VariantType.NUMBER_OF_TYPES + type];
+    }
+
+    public long getTransitions(int contig) {
+        return transitions[contig];
+    }
+
+    public long getTransversions(int contig) {
+        return transversions[contig];
+    }
+
+    /**
+     * Return the number of alternate alleles of a type on every contig
+     *
+     * @param type
+     * @return
+     */
+    public long getVariantTypeCount(int type) {
+        long count = 0;
+        for (int contig = 0; contig < contigCounts.length; contig++) {
+            count += getVariantTypeCount(contig, type);
+        }
+        return count;
+    }
+
+    public long getTransitions() {
+        return sum(transitions);
+    }
+
+    public long getTransversions() {
+        return sum(transversions);
+    }
+
+    private static long sum(long[] counts) {
+        long sum = 0;
+        for (long count : counts) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    /**
+     * Return the histogram of QUAL, with a value per record
+     *
+     * @return
+     */
+    public FixedBucketHistogram getQualityHistogram() {
+        return qualityHistogram;
+    }
+
+    /**
+     * Return the histogram of INFO/DP, with a value per record
+     *
+     * @return
+     */
+    public FixedBucketHistogram getDepthHistogram() {
+        return depthHistogram;
+    }
+
+    /**
+     * Return the histogram of INFO/AF, with a value per alternate allele
+     *
+     * @return
+     */
+    public FixedBucketHistogram getAlleleFrequencyHistogram() {
+        return alleleFrequencyHistogram;
+    }
+
+    /**
+     * Return the histogram of INFO/AC, with a value per alternate allele
+     *
+     * @return
+     */
+    public FixedBucketHistogram getAlleleCountHistogram() {
+        return alleleCountHistogram;
+    }
+
+    /**
+     * Return the number of records in each window of each contig, or null if no profile was asked for
+     *
+     * @return
+     */
+    public DensityProfile getDensityProfile() {
+        return densityProfile;
+    }
+
+    /**
+     * Return the genotype counts of each selected sample, or null if they were not asked for
+     *
+     * @return
+     */
+    public SampleGenotypeCounts getSampleGenotypeCounts() {
+        return sampleGenotypeCounts;
+    }
+
+    /**
+     * Return the number of records on each contig that has any, in the order of the sequence dictionary and then in
+     * the order undeclared contigs were seen
+     *
+     * @return
+     */
+    public Map<String, Long> getContigCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int contig = 0; contig < contigCounts.length; contig++) {
+            if (contigCounts[contig] > 0) {
+                counts.put(contigIndex.getName(contig), contigCounts[contig]);
+            }
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * Grow the contig arrays for contigs that were not in the header
+     *
+     * @param contig
+     */
+    private void ensureContig(int contig) {
+        if (contig >= contigCounts.length) {
+            int length = Math.max(contig + 1, contigCounts.length * 2);
+            contigCounts = Arrays.copyOf(contigCounts, length);
+            variantTypeCounts = Arrays.copyOf(variantTypeCounts, length * VariantType.NUMBER_OF_TYPES);
+            transitions = Arrays.copyOf(transitions, length);
+            transversions = Arrays.copyOf(transversions, length);
+        }
+    }
+}
@@ -1,62 +1,102 @@
 package io.github.jpleyte.vcf.detail;
 
-import java.util.Collections;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Data from each VcfDetails thread is collected in this model object.
  * 
+ * Each thread counts into its own VcfDetailsAccumulator, so the per record path does not write to anything another
+ * thread writes to. snapshot() merges them once at the end for the summary. Progress updates only sum the record
+ * counts, so they do not build the density profile and other large tables.
+ * 
  * @author j
  *
  */
 public class VcfDetailsModel {
-    public static final String[] CHROMOSOMES = { "1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11", "12",
-            "13", "14", "15", "16", "17", "18", "19", "20", "21", "22", "MT", "X", "Y" };
-
-    private AtomicInteger numberOfRecords = new AtomicInteger();
-    private AtomicInteger numberOfDuplicateGenotypes = new AtomicInteger();
-    private AtomicInteger numberOfVariantsWithMultiAllelicAlternates = new AtomicInteger();
-    private Map<String, AtomicInteger> chromosomeCounts = new ConcurrentHashMap<>();
+    private final ContigIndex contigIndex;
+    private final List<VcfDetailsAccumulator> accumulators = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<VcfDetailsAccumulator> threadAccumulators = ThreadLocal
+            .withInitial(this::createAccumulator);
+    // Set once a record of the contig has been seen; changes once per contig, so a lock is cheap
+    private final BitSet startedContigs = new BitSet();
+    private final int densityWindowSize;
+    private final int numberOfSamples;
 
-    public VcfDetailsModel() {
-        for (String chromosome : CHROMOSOMES) {
-            chromosomeCounts.put(chromosome, new AtomicInteger());
-        }
+    /**
+     * Constructor
+     *
+     * @param contigIndex the contigs of the VCF
+     * @param densityWindowSize the window size of the density profile, or 0 for no profile
+     * @param numberOfSamples the number of samples to count genotypes of, or 0 for no genotype counts
+     */
+    public VcfDetailsModel(ContigIndex contigIndex, int densityWindowSize, int numberOfSamples) {
+        this.contigIndex = contigIndex;
+        this.densityWindowSize = densityWindowSize;
+        this.numberOfSamples = numberOfSamples;
     }
 
-    public AtomicInteger getNumberOfRecords() {
-        return numberOfRecords;
+    public ContigIndex getContigIndex() {
+        return contigIndex;
     }
 
-    public AtomicInteger getNumberOfDuplicateGenotypes() {
-        return numberOfDuplicateGenotypes;
+    /**
+     * Return the accumulator of the calling thread. It must only be changed by that thread.
+     *
+     * @return
+     */
+    public VcfDetailsAccumulator getAccumulator() {
+        return threadAccumulators.get();
     }
 
-    public AtomicInteger getNumberOfVariantsWithMultiAllelicAlternates() {
-        return numberOfVariantsWithMultiAllelicAlternates;
+    /**
+     * Return the counts of every thread merged together. Counts still being made by running workers may be missing.
+     *
+     * @return
+     */
+    public VcfDetailsAccumulator snapshot() {
+        VcfDetailsAccumulator totals = new VcfDetailsAccumulator(contigIndex, densityWindowSize, numberOfSamples);
+        for (VcfDetailsAccumulator accumulator : accumulators) {
+            totals.merge(accumulator);
+        }
+        return totals;
     }
 
-    public Map<String, Integer> getChromosomeCounts() {
-        return Collections.unmodifiableMap(chromosomeCounts.entrySet().stream()
-                .collect(Collectors.toMap(Map.Entry::getKey, y -> y.getValue().get())));
+    /**
+     * Return the number of records every thread has counted so far, for progress updates. Counts still being made by
+     * running workers may be missing.
+     *
+     * @return
+     */
+    public long getNumberOfRecords() {
+        long numberOfRecords = 0;
+        for (VcfDetailsAccumulator accumulator : accumulators) {
+            numberOfRecords += accumulator.getNumberOfRecords();
+        }
+        return numberOfRecords;
     }
+
     /**
-     * Increment the number of variants found on this chromosome. Returns true if
-     * this is the first variant on the chromsome.
-     * 
-     * @param chromosome
+     * Note that a task has reached a contig. Returns true if this is the first task to reach it.
+     *
+     * @param contig the contig's index
      * @return
      */
-    public boolean incrementChromosomeVariantCount(String chromosome) {
-        chromosomeCounts.computeIfAbsent(chromosome, x -> new AtomicInteger());
-        if (chromosomeCounts.get(chromosome).getAndIncrement() == 0) {
+    public boolean startContig(int contig) {
+        synchronized (startedContigs) {
+            if (startedContigs.get(contig)) {
+                return false;
+            }
+            startedContigs.set(contig);
             return true;
-        } else {
-            return false;
         }
     }
 
+    private VcfDetailsAccumulator createAccumulator() {
+        VcfDetailsAccumulator accumulator = new VcfDetailsAccumulator(contigIndex, densityWindowSize, numberOfSamples);
+        accumulators.add(accumulator);
+        return accumulator;
+    }
+
 }
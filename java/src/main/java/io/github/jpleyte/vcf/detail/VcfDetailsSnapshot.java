@@ -0,0 +1,436 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+/**
+ * The results of a run over one shard of the input (a contig, a file or a byte range), saved so that the results of
+ * many shards can be merged into the summary a single run would have given. A snapshot is a small binary file with the
+ * contigs, the density window size, the counted samples, the counts, and optionally the sorted keys of every distinct
+ * variant in the shard. The contigs are stored by name, so shards whose contigs have different indexes can be merged.
+ *
+ * With keys, merging also counts the duplicates between shards: a variant in k shards adds k - 1 duplicates. Hashed
+ * keys are compared by their hash, as the allele text is not kept. The sorted keys of the shards are merged in one
+ * pass, and are kept in blocks so a snapshot is not limited to the largest array.
+ *
+ * The keys are written in blocks, each after its number of keys, and end with an empty block. So the keys of a run are
+ * merged from their run files straight into the snapshot file, without holding them in memory.
+ *
+ * @author j
+ *
+ */
+public class VcfDetailsSnapshot {
+    private static final String MAGIC = "VcfDetailsSnapshot";
+    private static final int VERSION = 4;
+    private static final int KEYS_PER_BLOCK = 1 << 20;
+    private static final int KEYS_PER_FILE_BLOCK = 1 << 16;
+
+    private final String keyType;
+    private final ContigIndex contigIndex;
+    private final int densityWindowSize;
+    private final List<String> sampleNames;
+    private final VcfDetailsAccumulator accumulator;
+    // Sorted and without repeats, or null if keys were not exported. Keys read or merged from snapshots are in memory;
+    // the keys of a run are in run files until they are written.
+    private final Keys keys;
+    private final KeyRunFiles keyRuns;
+
+    /**
+     * Constructor
+     *
+     * @param keyType what makes two records duplicates, such as the uniqueBy option
+     * @param contigIndex
+     * @param densityWindowSize the window size of the density profile, or 0 for no profile
+     * @param sampleNames the samples with genotype counts, in the order of their counts
+     * @param accumulator the counts
+     * @param keyRuns the sorted runs of the keys of the variants, merged when the snapshot is written, or null
+     */
+    public VcfDetailsSnapshot(String keyType, ContigIndex contigIndex, int densityWindowSize, List<String> sampleNames,
+            VcfDetailsAccumulator accumulator, KeyRunFiles keyRuns) {
+        this.keyType = keyType;
+        this.contigIndex = contigIndex;
+        this.densityWindowSize = densityWindowSize;
+        this.sampleNames = Collections.unmodifiableList(new ArrayList<>(sampleNames));
+        this.accumulator = accumulator;
+        this.keys = null;
+        this.keyRuns = keyRuns;
+    }
+
+    private VcfDetailsSnapshot(String keyType, ContigIndex contigIndex, int densityWindowSize,
+            List<String> sampleNames, VcfDetailsAccumulator accumulator, Keys keys) {
+        this.keyType = keyType;
+        this.contigIndex = contigIndex;
+        this.densityWindowSize = densityWindowSize;
+        this.sampleNames = Collections.unmodifiableList(new ArrayList<>(sampleNames));
+        this.accumulator = accumulator;
+        this.keys = keys;
+        this.keyRuns = null;
+    }
+
+    /**
+     * Read a snapshot written by write()
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static VcfDetailsSnapshot read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (!MAGIC.equals(in.readUTF())) {
+                throw new IOException(file + " is not a VcfDetails snapshot");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(file + " is a version " + version + " snapshot; expected version " + VERSION);
+            }
+
+            String keyType = in.readUTF();
+            int numberOfContigs = in.readInt();
+            List<SAMSequenceRecord> sequences = new ArrayList<>(numberOfContigs);
+            for (int contig = 0; contig < numberOfContigs; contig++) {
+                sequences.add(new SAMSequenceRecord(in.readUTF(), in.readInt()));
+            }
+            ContigIndex contigIndex = new ContigIndex(new SAMSequenceDictionary(sequences));
+            int densityWindowSize = in.readInt();
+            int numberOfSamples = in.readInt();
+            List<String> sampleNames = new ArrayList<>(numberOfSamples);
+            for (int sample = 0; sample < numberOfSamples; sample++) {
+                sampleNames.add(in.readUTF());
+            }
+
+            VcfDetailsAccumulator accumulator = new VcfDetailsAccumulator(contigIndex, densityWindowSize,
+                    numberOfSamples);
+            accumulator.read(in);
+
+            Keys keys = null;
+            if (in.readBoolean()) {
+                keys = new Keys();
+                for (int blockKeys = in.readInt(); blockKeys > 0; blockKeys = in.readInt()) {
+                    for (int i = 0; i < blockKeys; i++) {
+                        keys.add(in.readLong(), in.readLong(), in.readLong());
+                    }
+                }
+            }
+            return new VcfDetailsSnapshot(keyType, contigIndex, densityWindowSize, sampleNames, accumulator, keys);
+        }
+    }
+
+    /**
+     * Write the snapshot to a file. The run files of a run's keys are merged into it and deleted, so a snapshot with
+     * key runs is only written once.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeUTF(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(keyType);
+            out.writeInt(contigIndex.size());
+            for (int contig = 0; contig < contigIndex.size(); contig++) {
+                out.writeUTF(contigIndex.getName(contig));
+                out.writeInt(contigIndex.getLength(contig));
+            }
+            out.writeInt(densityWindowSize);
+            out.writeInt(sampleNames.size());
+            for (String sample : sampleNames) {
+                out.writeUTF(sample);
+            }
+
+            accumulator.write(out);
+
+            out.writeBoolean(hasKeys());
+            if (hasKeys()) {
+                KeyBlockWriter writer = new KeyBlockWriter(out);
+                if (keys != null) {
+                    for (long key = 0; key < keys.size(); key++) {
+                        writer.add(keys.get(key, 0), keys.get(key, 1), keys.get(key, 2));
+                    }
+                } else {
+                    keyRuns.merge(writer::add);
+                }
+                writer.finish();
+            }
+        }
+    }
+
+    /**
+     * Merge snapshots into one, as if their shards had been analysed in a single run. The contigs are those of the
+     * first snapshot, followed by the contigs only later ones have. The snapshots must have the same key type, density
+     * window size and samples.
+     *
+     * The merged snapshot has keys if every snapshot has, so merges can themselves be merged. Duplicates between shards
+     * are counted among the snapshots that have keys.
+     *
+     * @param snapshots
+     * @return
+     */
+    public static VcfDetailsSnapshot merge(List<VcfDetailsSnapshot> snapshots) {
+        VcfDetailsSnapshot first = snapshots.get(0);
+        List<SAMSequenceRecord> sequences = new ArrayList<>();
+        ContigIndex names = new ContigIndex(null);
+        for (VcfDetailsSnapshot snapshot : snapshots) {
+            if (!first.keyType.equals(snapshot.keyType)) {
+                throw new IllegalArgumentException("Snapshots were made with different uniqueBy settings: "
+                        + first.keyType + " and " + snapshot.keyType);
+            }
+            if (first.densityWindowSize != snapshot.densityWindowSize) {
+                throw new IllegalArgumentException("Snapshots have different density window sizes: "
+                        + first.densityWindowSize + " and " + snapshot.densityWindowSize);
+            }
+            if (!first.sampleNames.equals(snapshot.sampleNames)) {
+                throw new IllegalArgumentException("Snapshots have genotype counts of different samples");
+            }
+
+            // A contig's length is taken from the first snapshot whose header gives one
+            for (int contig = 0; contig < snapshot.contigIndex.size(); contig++) {
+                String name = snapshot.contigIndex.getName(contig);
+                int index = names.getIndex(name);
+                if (index == sequences.size()) {
+                    sequences.add(new SAMSequenceRecord(name, snapshot.contigIndex.getLength(contig)));
+                } else if (sequences.get(index).getSequenceLength() == 0) {
+                    sequences.get(index).setSequenceLength(snapshot.contigIndex.getLength(contig));
+                }
+            }
+        }
+
+        ContigIndex contigIndex = new ContigIndex(new SAMSequenceDictionary(sequences));
+        VcfDetailsAccumulator accumulator = new VcfDetailsAccumulator(contigIndex, first.densityWindowSize,
+                first.sampleNames.size());
+        List<KeyCursor> shardKeys = new ArrayList<>();
+        boolean allKeys = true;
+        for (VcfDetailsSnapshot snapshot : snapshots) {
+            int[] contigMap = new int[snapshot.contigIndex.size()];
+            for (int contig = 0; contig < contigMap.length; contig++) {
+                contigMap[contig] = contigIndex.getIndex(snapshot.contigIndex.getName(contig));
+            }
+            accumulator.merge(snapshot.accumulator, contigMap);
+
+            if (snapshot.keys != null) {
+                shardKeys.add(new KeyCursor(snapshot.keys, contigMap));
+            } else {
+                allKeys = false;
+            }
+        }
+
+        Keys keys = mergeKeys(shardKeys, accumulator);
+        return new VcfDetailsSnapshot(first.keyType, contigIndex, first.densityWindowSize, first.sampleNames,
+                accumulator, allKeys ? keys : null);
+    }
+
+    /**
+     * Return the distinct keys of every shard, sorted, and count a duplicate for each shard after the first that has
+     * a key. A shard's own keys have no repeats, so every repeat is between shards.
+     *
+     * @param shardKeys
+     * @param accumulator
+     * @return
+     */
+    private static Keys mergeKeys(List<KeyCursor> shardKeys, VcfDetailsAccumulator accumulator) {
+        PriorityQueue<KeyCursor> queue = new PriorityQueue<>();
+        for (KeyCursor cursor : shardKeys) {
+            if (cursor.next()) {
+                queue.add(cursor);
+            }
+        }
+
+        Keys keys = new Keys();
+        long numberOfRepeats = 0;
+        KeyCursor cursor;
+        while ((cursor = queue.poll()) != null) {
+            if (keys.size() > 0 && keys.isLast(cursor.locus, cursor.high, cursor.low)) {
+                numberOfRepeats++;
+            } else {
+                keys.add(cursor.locus, cursor.high, cursor.low);
+            }
+            if (cursor.next()) {
+                queue.add(cursor);
+            }
+        }
+        accumulator.addNumberOfDuplicateGenotypes(numberOfRepeats);
+        return keys;
+    }
+
+    public String getKeyType() {
+        return keyType;
+    }
+
+    public ContigIndex getContigIndex() {
+        return contigIndex;
+    }
+
+    public int getDensityWindowSize() {
+        return densityWindowSize;
+    }
+
+    public List<String> getSampleNames() {
+        return sampleNames;
+    }
+
+    public VcfDetailsAccumulator getAccumulator() {
+        return accumulator;
+    }
+
+    /**
+     * Return true if the snapshot has the keys of its distinct variants
+     *
+     * @return
+     */
+    public boolean hasKeys() {
+        return keys != null || keyRuns != null;
+    }
+
+    /**
+     * Keys of three longs each, in blocks of KEYS_PER_BLOCK keys
+     */
+    private static class Keys {
+        private final List<long[]> blocks = new ArrayList<>();
+        private long size;
+
+        long size() {
+            return size;
+        }
+
+        long get(long key, int field) {
+            return blocks.get((int) (key / KEYS_PER_BLOCK))[(int) (key % KEYS_PER_BLOCK) * 3 + field];
+        }
+
+        void add(long locus, long high, long low) {
+            int offset = (int) (size % KEYS_PER_BLOCK) * 3;
+            if (offset == 0) {
+                blocks.add(new long[KEYS_PER_BLOCK * 3]);
+            }
+            long[] block = blocks.get(blocks.size() - 1);
+            block[offset] = locus;
+            block[offset + 1] = high;
+            block[offset + 2] = low;
+            size++;
+        }
+
+        boolean isLast(long locus, long high, long low) {
+            return get(size - 1, 0) == locus && get(size - 1, 1) == high && get(size - 1, 2) == low;
+        }
+    }
+
+    /**
+     * Writes keys in blocks of up to KEYS_PER_FILE_BLOCK keys, each after its number of keys
+     */
+    private static class KeyBlockWriter {
+        private final DataOutputStream out;
+        private final long[] block = new long[KEYS_PER_FILE_BLOCK * 3];
+        private int size;
+
+        KeyBlockWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void add(long locus, long high, long low) throws IOException {
+            block[size * 3] = locus;
+            block[size * 3 + 1] = high;
+            block[size * 3 + 2] = low;
+            if (++size == KEYS_PER_FILE_BLOCK) {
+                writeBlock();
+            }
+        }
+
+        /**
+         * Write the last keys and the empty block that ends the keys
+         *
+         * @throws IOException
+         */
+        void finish() throws IOException {
+            if (size > 0) {
+                writeBlock();
+            }
+            out.writeInt(0);
+        }
+
+        private void writeBlock() throws IOException {
+            out.writeInt(size);
+            for (int i = 0; i < size * 3; i++) {
+                out.writeLong(block[i]);
+            }
+            size = 0;
+        }
+    }
+
+    /**
+     * Walks the keys of one snapshot in the merged order. The keys are sorted by the snapshot's contig indexes, so each
+     * contig's keys are together; the cursor visits the contigs in the order of their merged indexes and changes the
+     * loci as it goes.
+     */
+    private static class KeyCursor implements Comparable<KeyCursor> {
+        private final Keys keys;
+        private final int[] contigMap;
+        // Where each contig's keys start and end, in the order they are visited
+        private final List<long[]> runs = new ArrayList<>();
+        private int run;
+        private long key;
+        long locus;
+        long high;
+        long low;
+
+        KeyCursor(Keys keys, int[] contigMap) {
+            this.keys = keys;
+            this.contigMap = contigMap;
+
+            long start = 0;
+            for (long i = 1; i <= keys.size(); i++) {
+                if (i == keys.size() || getContig(keys.get(i, 0)) != getContig(keys.get(start, 0))) {
+                    runs.add(new long[] { start, i });
+                    start = i;
+                }
+            }
+            runs.sort((run1, run2) -> Integer.compare(getMergedContig(keys.get(run1[0], 0)),
+                    getMergedContig(keys.get(run2[0], 0))));
+            key = runs.isEmpty() ? 0 : runs.get(0)[0] - 1;
+        }
+
+        boolean next() {
+            if (run == runs.size()) {
+                return false;
+            }
+            if (++key == runs.get(run)[1]) {
+                if (++run == runs.size()) {
+                    return false;
+                }
+                key = runs.get(run)[0];
+            }
+
+            long snapshotLocus = keys.get(key, 0);
+            locus = snapshotLocus == VariantKey.ID_LOCUS ? snapshotLocus
+                    : VariantKey.toLocus(getMergedContig(snapshotLocus), (int) snapshotLocus);
+            high = keys.get(key, 1);
+            low = keys.get(key, 2);
+            return true;
+        }
+
+        private static int getContig(long locus) {
+            return (int) (locus >>> 32) - 1;
+        }
+
+        private int getMergedContig(long locus) {
+            // Keys that are not tied to a contig come first
+            return locus == VariantKey.ID_LOCUS ? -1 : contigMap[getContig(locus)];
+        }
+
+        @Override
+        public int compareTo(KeyCursor other) {
+            return VariantKeyCollector.compare(locus, high, low, other.locus, other.high, other.low);
+        }
+    }
+}
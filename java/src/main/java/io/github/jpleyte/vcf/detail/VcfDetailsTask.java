@@ -1,16 +1,18 @@
 package io.github.jpleyte.vcf.detail;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 import htsjdk.variant.variantcontext.Allele;
 import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFConstants;
 import io.github.jpleyte.log.BootstrapLogger;
 
 /**
- * This is the worker thread for the VcfDetails app
+ * This is the worker task for the VcfDetails app. Each task analyses a batch of records so the cost of creating and
+ * queuing the task is shared by every record in the batch.
  * To Do:
  *  - Try parallel processing the chromosome stream
  *  -
@@ -20,109 +22,247 @@ public class VcfDetailsTask implements Runnable {
 
     private static final int STATUS_UPDATE_FREQUENCY = 500000000;
 
-    private final Set<String> genotypes = new HashSet<>();
-
     final VcfDetailsModel vcfDetailsModel;
-    final VariantContext variantContext;
+    final VariantKeyEncoder variantKeyEncoder;
+    final VariantKey variantKey = new VariantKey();
+    VariantKeyExtractor variantKeyExtractor;
+    DuplicateVariantChecker duplicateVariantChecker;
+    SampleGenotypeCounter sampleGenotypeCounter;
+    Executor sampleColumnHelpers;
+    int numberOfSampleColumnWorkers;
+    SortOrderChecker.Chunk sortOrderChunk;
+    final Iterator<VariantContext> variantContexts;
 
     boolean printStatusUpdates = false;
-    boolean printDuplicateGenotypes = false;
     boolean printMultiAllelicAlternates;
+    long firstOrdinal = -1;
+    Runnable completionCallback;
+
+    // The counts of the thread running the task, set when the task starts
+    VcfDetailsAccumulator accumulator;
+    int currentContig = -1;
 
     /**
      * Constructor
      * 
-     * @param variantContext
+     * @param variantContexts
      * @param details
+     * @param contigIndex
      */
-    public VcfDetailsTask(VariantContext variantContext, VcfDetailsModel details) {
+    public VcfDetailsTask(List<VariantContext> variantContexts, VcfDetailsModel details, ContigIndex contigIndex) {
+        this(variantContexts.iterator(), details, contigIndex);
+    }
+
+    /**
+     * Constructor for a task that analyses every record returned by an iterator, such as a query on an indexed VCF
+     * 
+     * @param variantContexts
+     * @param details
+     * @param contigIndex
+     */
+    public VcfDetailsTask(Iterator<VariantContext> variantContexts, VcfDetailsModel details,
+            ContigIndex contigIndex) {
         this.vcfDetailsModel = details;
-        this.variantContext = variantContext;
+        this.variantContexts = variantContexts;
+        this.variantKeyEncoder = new VariantKeyEncoder(contigIndex);
     }
 
     int lastPosition = 0;
 
     @Override
     public void run() {
-        analyse(variantContext);
+        try {
+            accumulator = vcfDetailsModel.getAccumulator();
+            long ordinal = firstOrdinal;
+            while (variantContexts.hasNext()) {
+                analyse(variantContexts.next(), ordinal);
+                if (ordinal >= 0) {
+                    ordinal++;
+                }
+            }
+        } finally {
+            if (sortOrderChunk != null) {
+                sortOrderChunk.finish();
+            }
+            if (completionCallback != null) {
+                completionCallback.run();
+            }
+        }
     }
 
     /**
      * Run each analysis function on the current VariantContext
      *
      * @param vc
+     * @param ordinal position of the record in the file, counting from zero, or -1 if it is not known
      */
-    private void analyse(VariantContext vc) {
-        if (vcfDetailsModel.incrementChromosomeVariantCount(vc.getContig())) {
-            log.info("Starting chromosome " + vc.getContig());
-        }
-
+    private void analyse(VariantContext vc, long ordinal) {
+        countContig(vc);
         countRecords();
+        if (sortOrderChunk != null) {
+            sortOrderChunk.add(currentContig, vc.getStart());
+        }
 
         if (printStatusUpdates) {
-            printStatusUpdate(vc);
+            printStatusUpdate(vc, ordinal);
         }
 
-        checkForDuplicateGenotype(vc);
+        if (duplicateVariantChecker != null && variantKeyExtractor.extract(vc, variantKey)) {
+            duplicateVariantChecker.check(variantKey, ordinal, accumulator);
+        }
 
         checkForMultiAllelicAlternate(vc);
+        countVariantTypes(vc);
+        addToHistograms(vc);
+
+        if (sampleGenotypeCounter != null) {
+            countSampleGenotypes(vc);
+        }
     }
 
     /**
-     * Return a string representation of the variant
+     * Count the genotypes of each sample. The columns of wide records are shared with the other workers if helpers
+     * were given.
      *
      * @param vc
-     * @return
      */
-    private String mapToGenotype(VariantContext vc) {
-        String chromosome = vc.getContig();
-        int position = vc.getStart();
-
-        String reference = vc.getReference().getDisplayString();
-
-        String alternate = vc.getAlternateAlleles().stream()
-                .map(Allele::getDisplayString)
-                .sorted()
-                .collect(Collectors.joining(","));
-
-        String genotype = chromosome + "-" + position + "-" + reference + "-" + alternate;
+    private void countSampleGenotypes(VariantContext vc) {
+        if (sampleColumnHelpers != null && SampleColumnTask.isWide(sampleGenotypeCounter.getNumberOfColumns())) {
+            String text = SampleGenotypeCounter.getUnparsedGenotypes(vc);
+            if (text != null) {
+                SampleColumnTask.count(sampleColumnHelpers, numberOfSampleColumnWorkers, sampleGenotypeCounter,
+                        vcfDetailsModel, text);
+                return;
+            }
+        }
+        sampleGenotypeCounter.count(vc, accumulator.getSampleGenotypeCounts());
+    }
 
-        return genotype;
+    /**
+     * Count the record against its contig
+     *
+     * @param vc
+     */
+    private void countContig(VariantContext vc) {
+        int contig = variantKeyEncoder.getContigIndex(vc.getContig());
+        if (contig != currentContig) {
+            currentContig = contig;
+            if (vcfDetailsModel.startContig(contig)) {
+                log.info("Starting chromosome " + vc.getContig());
+            }
+        }
+        accumulator.incrementContigVariantCount(contig);
+        if (accumulator.getDensityProfile() != null) {
+            accumulator.getDensityProfile().add(contig, vc.getStart());
+        }
     }
 
     /**
      * Keep track of how many records are in the VCF
      */
     private void countRecords() {
-        vcfDetailsModel.getNumberOfRecords().incrementAndGet();
+        accumulator.incrementNumberOfRecords();
     }
 
     /**
-     * Print a status message after processing every nth record
+     * Print a status message after processing every nth record. The record's position in the file is used when it is
+     * known; otherwise every nth record of this thread prints the total of every thread so far.
      *
      * @param vc
+     * @param ordinal position of the record in the file, counting from zero, or -1 if it is not known
      */
-    private void printStatusUpdate(VariantContext vc) {
-        int recordsProcessed = vcfDetailsModel.getNumberOfRecords().get();
+    private void printStatusUpdate(VariantContext vc, long ordinal) {
+        long recordsProcessed = ordinal >= 0 ? ordinal + 1 : accumulator.getNumberOfRecords();
         if (recordsProcessed % STATUS_UPDATE_FREQUENCY == 0 && recordsProcessed > 0) {
+            if (ordinal < 0) {
+                recordsProcessed = vcfDetailsModel.getNumberOfRecords();
+            }
             log.info("Processing record " + recordsProcessed + ", contig=" + vc.getContig());
         }
     }
 
     /**
-     * Determine if the variant has already been encountered, and print its genotype
-     * if it is.
+     * Count the type of each alternate allele, and whether each SNP is a transition or a transversion. The allele bases
+     * are compared directly so no strings are made.
+     *
+     * @param vc
+     */
+    private void countVariantTypes(VariantContext vc) {
+        List<Allele> alleles = vc.getAlleles();
+        Allele reference = alleles.get(0);
+        for (int i = 1; i < alleles.size(); i++) {
+            Allele alternate = alleles.get(i);
+            int type = VariantType.classify(reference, alternate);
+            if (type == VariantType.NONE) {
+                continue;
+            }
+
+            accumulator.incrementVariantType(currentContig, type);
+            if (type == VariantType.SNP) {
+                byte from = reference.getBases()[0];
+                byte to = alternate.getBases()[0];
+                if (VariantType.isTransition(from, to)) {
+                    accumulator.incrementTransitions(currentContig);
+                } else if (VariantType.isTransversion(from, to)) {
+                    accumulator.incrementTransversions(currentContig);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the record's QUAL, DP, AF and AC to the histograms
      *
      * @param vc
      */
-    private void checkForDuplicateGenotype(VariantContext vc) {
-        String genotype = mapToGenotype(vc);
-        if (!genotypes.add(genotype)) {
-            vcfDetailsModel.getNumberOfDuplicateGenotypes().incrementAndGet();
+    private void addToHistograms(VariantContext vc) {
+        if (vc.hasLog10PError()) {
+            accumulator.getQualityHistogram().add(vc.getPhredScaledQual());
+        } else {
+            accumulator.getQualityHistogram().addMissing();
+        }
+        addInfoValues(accumulator.getDepthHistogram(), vc.getAttribute(VCFConstants.DEPTH_KEY));
+        addInfoValues(accumulator.getAlleleFrequencyHistogram(), vc.getAttribute(VCFConstants.ALLELE_FREQUENCY_KEY));
+        addInfoValues(accumulator.getAlleleCountHistogram(), vc.getAttribute(VCFConstants.ALLELE_COUNT_KEY));
+    }
 
-            if (printDuplicateGenotypes) {
-                log.info("Duplicate: " + genotype);
+    /**
+     * Add the values of an INFO field to a histogram. The codec leaves single values as strings and splits values with
+     * commas into lists.
+     *
+     * @param histogram
+     * @param attribute
+     */
+    private static void addInfoValues(FixedBucketHistogram histogram, Object attribute) {
+        if (attribute instanceof List) {
+            for (Object value : (List<?>) attribute) {
+                histogram.add(parseInfoValue(value));
             }
+        } else if (attribute != null) {
+            histogram.add(parseInfoValue(attribute));
+        } else {
+            histogram.addMissing();
+        }
+    }
+
+    /**
+     * Return an INFO value as a number, or NaN if it is missing or not a number
+     *
+     * @param value
+     * @return
+     */
+    private static double parseInfoValue(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        String text = value.toString();
+        if (text.isEmpty() || VCFConstants.MISSING_VALUE_v4.equals(text)) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
         }
     }
 
@@ -133,13 +273,24 @@ public class VcfDetailsTask implements Runnable {
      */
     private void checkForMultiAllelicAlternate(VariantContext vc) {
         if (vc.getAlternateAlleles().size() > 1) {
-            vcfDetailsModel.getNumberOfVariantsWithMultiAllelicAlternates().incrementAndGet();
+            accumulator.incrementNumberOfVariantsWithMultiAllelicAlternates();
             if (printMultiAllelicAlternates) {
-                log.info("Multiallelic alt at " + mapToGenotype(vc));
+                log.info("Multiallelic alt at " + describeVariant(vc));
             }
         }
     }
 
+    /**
+     * Return a description of the variant for log messages
+     *
+     * @param vc
+     * @return
+     */
+    private String describeVariant(VariantContext vc) {
+        variantKeyEncoder.encode(vc, variantKey);
+        return variantKey.describe(variantKeyEncoder.getContigIndex());
+    }
+
     public boolean isPrintStatusUpdates() {
         return printStatusUpdates;
     }
@@ -148,12 +299,89 @@ public class VcfDetailsTask implements Runnable {
         this.printStatusUpdates = printStatusUpdates;
     }
 
-    public boolean isPrintDuplicateGenotypes() {
-        return printDuplicateGenotypes;
+    public DuplicateVariantChecker getDuplicateVariantChecker() {
+        return duplicateVariantChecker;
+    }
+
+    /**
+     * Set the checker that looks for duplicates, or null if duplicates are looked for elsewhere, such as on the reader
+     * thread
+     * 
+     * @param duplicateVariantChecker
+     */
+    public void setDuplicateVariantChecker(DuplicateVariantChecker duplicateVariantChecker) {
+        this.duplicateVariantChecker = duplicateVariantChecker;
     }
 
-    public void setPrintDuplicateGenotypes(boolean printDuplicateGenotypes) {
-        this.printDuplicateGenotypes = printDuplicateGenotypes;
+    public SampleGenotypeCounter getSampleGenotypeCounter() {
+        return sampleGenotypeCounter;
+    }
+
+    /**
+     * Set the counter of per sample genotypes, or null to not count them
+     * 
+     * @param sampleGenotypeCounter
+     */
+    public void setSampleGenotypeCounter(SampleGenotypeCounter sampleGenotypeCounter) {
+        this.sampleGenotypeCounter = sampleGenotypeCounter;
+    }
+
+    /**
+     * Share the sample columns of wide records with the other workers, or pass null to count them on this thread
+     * 
+     * @param sampleColumnHelpers runs helpers on free workers without blocking
+     * @param numberOfWorkers the number of workers, including this task's
+     */
+    public void setSampleColumnHelpers(Executor sampleColumnHelpers, int numberOfWorkers) {
+        this.sampleColumnHelpers = sampleColumnHelpers;
+        this.numberOfSampleColumnWorkers = numberOfWorkers;
+    }
+
+    /**
+     * Set the checker of the sort order of the task's chunk of the file, or null to not check it. The task finishes
+     * the chunk when it has analysed its records.
+     * 
+     * @param sortOrderChunk
+     */
+    public void setSortOrderChunk(SortOrderChecker.Chunk sortOrderChunk) {
+        this.sortOrderChunk = sortOrderChunk;
+    }
+
+    public VariantKeyExtractor getVariantKeyExtractor() {
+        return variantKeyExtractor;
+    }
+
+    /**
+     * Set what makes two records duplicates. The extractor must not be shared with another task that runs at the same
+     * time.
+     * 
+     * @param variantKeyExtractor
+     */
+    public void setVariantKeyExtractor(VariantKeyExtractor variantKeyExtractor) {
+        this.variantKeyExtractor = variantKeyExtractor;
+    }
+
+    public long getFirstOrdinal() {
+        return firstOrdinal;
+    }
+
+    /**
+     * Set the position in the file of the first record this task analyses, so that the records can be numbered
+     * 
+     * @param firstOrdinal
+     */
+    public void setFirstOrdinal(long firstOrdinal) {
+        this.firstOrdinal = firstOrdinal;
+    }
+
+    /**
+     * Set something to run when the task has analysed every record, such as releasing duplicate index state the task
+     * was holding on to
+     * 
+     * @param completionCallback
+     */
+    public void setCompletionCallback(Runnable completionCallback) {
+        this.completionCallback = completionCallback;
     }
 
     public boolean isPrintMultiAllelicAlternates() {
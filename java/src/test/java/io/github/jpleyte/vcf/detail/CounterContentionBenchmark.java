@@ -0,0 +1,116 @@
+package io.github.jpleyte.vcf.detail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang3.math.NumberUtils;
+
+import io.github.jpleyte.log.BootstrapLogger;
+
+/**
+ * Times shared counters when every worker increments the same counters for every record, as VcfDetailsTask would
+ * without its per thread VcfDetailsAccumulator. Run with the number of threads and the number of increments per thread,
+ * for example "CounterContentionBenchmark 16 50000000". It is in the test sources so it is not shipped; build it with
+ * mvn test-compile and run it from target/test-classes. The differences only show on a machine with many cores.
+ *
+ * @author j
+ *
+ */
+public class CounterContentionBenchmark {
+    private static final Logger log = BootstrapLogger.configureLogger(CounterContentionBenchmark.class.getName());
+
+    private static final int DEFAULT_INCREMENTS_PER_THREAD = 20000000;
+    // The workers update the record, duplicate and chromosome counts for each record
+    private static final int COUNTERS_PER_RECORD = 3;
+
+    public static void main(String[] args) throws InterruptedException {
+        int numberOfThreads = args.length > 0 ? NumberUtils.toInt(args[0], 0)
+                : Runtime.getRuntime().availableProcessors();
+        int incrementsPerThread = args.length > 1 ? NumberUtils.toInt(args[1], 0) : DEFAULT_INCREMENTS_PER_THREAD;
+        if (numberOfThreads < 1 || incrementsPerThread < 1) {
+            log.severe("Usage: CounterContentionBenchmark [threads] [incrementsPerThread]");
+            System.exit(1);
+        }
+
+        // The first round warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            AtomicInteger[] atomicIntegers = new AtomicInteger[COUNTERS_PER_RECORD];
+            AtomicLong[] atomicLongs = new AtomicLong[COUNTERS_PER_RECORD];
+            LongAdder[] longAdders = new LongAdder[COUNTERS_PER_RECORD];
+            for (int i = 0; i < COUNTERS_PER_RECORD; i++) {
+                atomicIntegers[i] = new AtomicInteger();
+                atomicLongs[i] = new AtomicLong();
+                longAdders[i] = new LongAdder();
+            }
+
+            long atomicInteger = time(numberOfThreads, incrementsPerThread, () -> {
+                for (AtomicInteger counter : atomicIntegers) {
+                    counter.incrementAndGet();
+                }
+            });
+            long atomicLong = time(numberOfThreads, incrementsPerThread, () -> {
+                for (AtomicLong counter : atomicLongs) {
+                    counter.incrementAndGet();
+                }
+            });
+            long longAdder = time(numberOfThreads, incrementsPerThread, () -> {
+                for (LongAdder counter : longAdders) {
+                    counter.increment();
+                }
+            });
+
+            if (round > 0) {
+                long records = (long) numberOfThreads * incrementsPerThread;
+                log.info(numberOfThreads + " threads, " + records + " records of " + COUNTERS_PER_RECORD + " counters");
+                log.info(report("AtomicInteger", atomicInteger, records));
+                log.info(report("AtomicLong", atomicLong, records));
+                log.info(report("LongAdder", longAdder, records));
+                log.info(String.format("AtomicInteger takes %.1fx as long as LongAdder",
+                        (double) atomicInteger / longAdder));
+            }
+        }
+    }
+
+    /**
+     * Return the nanoseconds taken for every thread to run an update a number of times
+     *
+     * @param numberOfThreads
+     * @param incrementsPerThread
+     * @param update
+     * @return
+     * @throws InterruptedException
+     */
+    private static long time(int numberOfThreads, int incrementsPerThread, Runnable update)
+            throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int j = 0; j < incrementsPerThread; j++) {
+                    update.run();
+                }
+            });
+            threads[i].start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    private static String report(String name, long nanos, long records) {
+        return String.format("%-14s %6d ms %6.1f ns/record", name, nanos / 1000000, (double) nanos / records);
+    }
+}